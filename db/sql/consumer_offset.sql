@@ -0,0 +1,12 @@
+-- Offsets of the events written by vanda_hydrometry_event_consumer with "offsetStore=true" (the offset after
+-- the newest written event of each partition, stored in the same transaction as the measurements).
+-- Run it once (with psql) before enabling the offset store. It can be run again.
+
+create table if not exists vanda.consumer_offset (
+	consumer_group text not null,
+	topic text not null,
+	partition integer not null,
+	next_offset bigint not null,
+	updated timestamptz not null default now(),
+	primary key (consumer_group, topic, partition)
+);
@@ -0,0 +1,14 @@
+-- Source position of the measurement records (topic, partition and offset of the event they were written from),
+-- used by vanda_hydrometry_event_consumer with "idempotentWrites=true" to skip the events already written.
+-- Run it once (with psql, outside a transaction since the index is created concurrently) before enabling
+-- the idempotent writes. It can be run again.
+
+alter table vanda.measurement
+	add column if not exists source_topic text,
+	add column if not exists source_partition integer,
+	add column if not exists source_offset bigint;
+
+-- not unique: the records written by tests can have the same positions as the events
+create index concurrently if not exists measurement_source_position_idx
+	on vanda.measurement (source_topic, source_partition, source_offset)
+	where source_offset is not null;
@@ -0,0 +1,214 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.EventFilterHolder;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.VandaHEventConsumerConfig;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.dao.MeasurementDao;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper.EventModelDeserializer;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.Measurement;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementKey;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementState;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.service.DatabaseService;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.service.EventLaneDispatcher;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.service.MeasurementStateCache;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.service.OffsetStore;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.service.VandaHEventProcessor;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Runs the event corpus (events.jsonl) through the consume path of the batch listener in polls
+ * of 500 records, without Kafka and without a DB: decoding the record value (EventModelDeserializer),
+ * setting the record's partition, offset and timestamp, filtering, splitting into lanes and
+ * DatabaseService.processEvents with a DAO that returns the history state of the updated and deleted
+ * measurements (so no event is dropped or logged) and does not write anything.
+ * <p>
+ * The measurement key alone is measured with the packed MeasurementKey and with a key of boxed fields
+ * hashed with Objects.hash (as the key was before), grouping the decoded events by key and lane.
+ * <p>
+ * One operation is one event, so the score is events/sec and with "-prof gc"
+ * gc.alloc.rate.norm is the number of bytes allocated per event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@org.openjdk.jmh.annotations.Measurement(iterations = 5, time = 5)
+@Fork(1)
+@OperationsPerInvocation(EventDeserializationBenchmark.CORPUS_SIZE)
+public class ConsumePathBenchmark {
+
+  private static final int POLL_SIZE = 500;
+
+  private static final int LANES = 4;
+
+  // accepted examination types, all if empty
+  @Param({"", "25,27"})
+  public String examinationTypeSc;
+
+  private List<byte[]> corpusBytes;
+  private List<EventModel> events;
+  private EventModelDeserializer eventModelDeserializer;
+  private EventFilterHolder eventFilter;
+  private EventLaneDispatcher laneDispatcher;
+  private DatabaseService dbService;
+  private long timestamp;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    corpusBytes = EventDeserializationBenchmark.readCorpus().stream()
+        .map(message -> message.getBytes(StandardCharsets.UTF_8)).toList();
+
+    ObjectReader eventReader = new ObjectMapper().readerFor(EventModel.class);
+    VandaHEventConsumerConfig config = new VandaHEventConsumerConfig();
+    eventFilter = new EventFilterHolder(config);
+    eventFilter.reload(examinationTypeSc.isEmpty() ? null : examinationTypeSc, null);
+    eventModelDeserializer = new EventModelDeserializer(eventReader, config, eventFilter);
+    events = new ArrayList<>();
+    for (byte[] message : corpusBytes) {
+      events.add(eventReader.readValue(message));
+    }
+
+    // the updated and deleted measurements exist, the added ones do not
+    Set<MeasurementKey> existing = new HashSet<>();
+    for (EventModel event : events) {
+      if (!VandaHEventProcessor.EVENT_MEASUREMENT_ADDED.equals(event.getEventType())) {
+        existing.add(MeasurementKey.of(event));
+      }
+    }
+
+    laneDispatcher = new EventLaneDispatcher(1, 1);  //the lanes run inline
+    dbService = new DatabaseService(null, measurementDao(existing), null, new MeasurementStateCache(0),
+        new OffsetStore(false, null, null, null), null);
+    timestamp = System.currentTimeMillis();
+  }
+
+  /**
+   * A DAO answering the queries of processEvents without a DB
+   *
+   * @param existing the measurements with a current record
+   * @return measurement DAO
+   */
+  @SuppressWarnings("unchecked")
+  private static MeasurementDao measurementDao(Set<MeasurementKey> existing) {
+    OffsetDateTime latest = OffsetDateTime.ofInstant(Instant.EPOCH, ZoneOffset.UTC);
+    return (MeasurementDao) Proxy.newProxyInstance(MeasurementDao.class.getClassLoader(),
+        new Class<?>[] {MeasurementDao.class}, (proxy, method, args) -> switch (method.getName()) {
+          case "lockMeasurements" -> ((List<Measurement>) args[0]).size();
+          case "readMeasurementStates" -> {
+            List<MeasurementState> states = new ArrayList<>();
+            for (Measurement measurement : (List<Measurement>) args[0]) {
+              if (existing.contains(MeasurementKey.of(measurement))) {
+                MeasurementState state = new MeasurementState();
+                state.setStationId(measurement.getStationId());
+                state.setMeasurementPointNumber(measurement.getMeasurementPointNumber());
+                state.setExaminationTypeSc(measurement.getExaminationTypeSc());
+                state.setMeasurementDateTime(measurement.getMeasurementDateTime());
+                state.register(latest, true);
+                states.add(state);
+              }
+            }
+            yield states;
+          }
+          case "inactivateMeasurementHistories" -> new int[((List<Measurement>) args[0]).size()];
+          case "insertMeasurements" -> null;
+          default -> throw new UnsupportedOperationException(method.getName());
+        });
+  }
+
+  @Benchmark
+  public void consumePoll(Blackhole blackhole) {
+    long offset = 0;
+    for (int from = 0; from < corpusBytes.size(); from += POLL_SIZE) {
+      List<EventModel> acceptedEvents = new ArrayList<>(POLL_SIZE);
+      for (byte[] message : corpusBytes.subList(from, Math.min(from + POLL_SIZE, corpusBytes.size()))) {
+        EventModel event = eventModelDeserializer.deserialize("events", null, ByteBuffer.wrap(message));
+        if (event == null) {
+          continue;
+        }
+        event.setPartition(0);
+        event.setOffset(offset++);
+        event.setRecordDateTime(OffsetDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneOffset.UTC));
+        if (eventFilter.get().accept(event.getEventType(), event.getExaminationTypeSc())) {
+          acceptedEvents.add(event);
+        }
+      }
+      laneDispatcher.dispatch(acceptedEvents, laneEvents -> blackhole.consume(dbService.processEvents(laneEvents)));
+    }
+  }
+
+  @Benchmark
+  public void packedMeasurementKey(Blackhole blackhole) {
+    HashMap<MeasurementKey, EventModel> measurements = new HashMap<>();
+    for (EventModel event : events) {
+      MeasurementKey key = MeasurementKey.of(event);
+      blackhole.consume(Math.floorMod(key.hashCode(), LANES));
+      measurements.putIfAbsent(key, event);
+    }
+    blackhole.consume(measurements);
+  }
+
+  @Benchmark
+  public void boxedMeasurementKey(Blackhole blackhole) {
+    HashMap<BoxedMeasurementKey, EventModel> measurements = new HashMap<>();
+    for (EventModel event : events) {
+      BoxedMeasurementKey key = BoxedMeasurementKey.of(event);
+      blackhole.consume(Math.floorMod(key.hashCode(), LANES));
+      measurements.putIfAbsent(key, event);
+    }
+    blackhole.consume(measurements);
+  }
+
+  /**
+   * The measurement key with boxed fields, for comparison
+   */
+  private record BoxedMeasurementKey(String stationId, Integer measurementPointNumber,
+                                     Integer examinationTypeSc, Instant measurementDateTime) {
+
+    static BoxedMeasurementKey of(EventModel event) {
+      return new BoxedMeasurementKey(event.getStationId(), event.getMeasurementPointNumber(),
+          event.getExaminationTypeSc(), event.getMeasurementDateTime().toInstant());
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(stationId, measurementPointNumber, examinationTypeSc, measurementDateTime);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof BoxedMeasurementKey other
+          && Objects.equals(stationId, other.stationId)
+          && Objects.equals(measurementPointNumber, other.measurementPointNumber)
+          && Objects.equals(examinationTypeSc, other.examinationTypeSc)
+          && Objects.equals(measurementDateTime, other.measurementDateTime);
+    }
+  }
+}
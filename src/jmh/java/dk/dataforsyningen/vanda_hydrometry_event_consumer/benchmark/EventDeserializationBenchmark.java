@@ -0,0 +1,125 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.EventFilterHolder;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.VandaHEventConsumerConfig;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper.EventModelDeserializer;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decodes the event corpus (events.jsonl, one DMP event message per line) into EventModel
+ * with a new ObjectMapper per event and with the shared ObjectReader, and from the message bytes
+ * as received from Kafka: decoded into a string first and decoded directly by EventModelDeserializer,
+ * accepting all the events or only examination types 25 and 27 (most events are rejected by the pre-scan).
+ * <p>
+ * One operation is one event, so the score is events/sec and with "-prof gc"
+ * gc.alloc.rate.norm is the number of bytes allocated per event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@org.openjdk.jmh.annotations.Measurement(iterations = 5, time = 5)
+@Fork(1)
+@OperationsPerInvocation(EventDeserializationBenchmark.CORPUS_SIZE)
+public class EventDeserializationBenchmark {
+
+  static final int CORPUS_SIZE = 2000;
+
+  // the default configuration (application.properties)
+  private static final String EXAMINATION_TYPES = "25,27";
+
+  private List<String> corpus;
+  private List<byte[]> corpusBytes;
+  private ObjectReader eventReader;
+  private EventModelDeserializer eventModelDeserializer;
+  private EventModelDeserializer filteringEventModelDeserializer;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    corpus = readCorpus();
+    if (corpus.size() != CORPUS_SIZE) {
+      throw new IllegalStateException("Expected " + CORPUS_SIZE + " events in the corpus but found " + corpus.size());
+    }
+    corpusBytes = corpus.stream().map(message -> message.getBytes(StandardCharsets.UTF_8)).toList();
+    eventReader = new ObjectMapper().readerFor(EventModel.class);
+    VandaHEventConsumerConfig config = new VandaHEventConsumerConfig();
+    eventModelDeserializer = new EventModelDeserializer(eventReader, config, new EventFilterHolder(config));
+    EventFilterHolder eventFilter = new EventFilterHolder(config);
+    eventFilter.reload(EXAMINATION_TYPES, null);
+    filteringEventModelDeserializer = new EventModelDeserializer(eventReader, config, eventFilter);
+  }
+
+  /**
+   * Reads the event messages from the corpus file on the classpath
+   *
+   * @return list of event messages
+   * @throws IOException
+   */
+  static List<String> readCorpus() throws IOException {
+    try (InputStream in = EventDeserializationBenchmark.class.getResourceAsStream("/events.jsonl")) {
+      if (in == null) {
+        throw new IllegalStateException("events.jsonl not found on the classpath");
+      }
+      return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)).lines()
+          .filter(line -> !line.isBlank())
+          .toList();
+    }
+  }
+
+  @Benchmark
+  public void newObjectMapperPerEvent(Blackhole blackhole) throws IOException {
+    for (String message : corpus) {
+      blackhole.consume(new ObjectMapper().readValue(message, EventModel.class));
+    }
+  }
+
+  @Benchmark
+  public void sharedObjectReader(Blackhole blackhole) throws IOException {
+    for (String message : corpus) {
+      blackhole.consume((EventModel) eventReader.readValue(message));
+    }
+  }
+
+  @Benchmark
+  public void stringThenObjectReader(Blackhole blackhole) throws IOException {
+    for (byte[] message : corpusBytes) {
+      blackhole.consume((EventModel) eventReader.readValue(new String(message, StandardCharsets.UTF_8)));
+    }
+  }
+
+  @Benchmark
+  public void eventModelDeserializer(Blackhole blackhole) {
+    for (byte[] message : corpusBytes) {
+      blackhole.consume(eventModelDeserializer.deserialize("events", null, ByteBuffer.wrap(message)));
+    }
+  }
+
+  @Benchmark
+  public void eventModelDeserializerWithFilter(Blackhole blackhole) {
+    for (byte[] message : corpusBytes) {
+      blackhole.consume(filteringEventModelDeserializer.deserialize("events", null, ByteBuffer.wrap(message)));
+    }
+  }
+}
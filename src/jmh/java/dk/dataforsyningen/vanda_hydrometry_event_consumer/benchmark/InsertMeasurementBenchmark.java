@@ -0,0 +1,115 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.benchmark;
+
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.dao.MeasurementDao;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.dao.MeasurementTypeDao;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.dao.StationDao;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.Measurement;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementType;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.Station;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jdbi.v3.core.Handle;
+import org.jdbi.v3.core.Jdbi;
+import org.jdbi.v3.postgres.PostgresPlugin;
+import org.jdbi.v3.sqlobject.SqlObjectPlugin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the insert with "returning *" and row mapping with the insert that does not read the record back.
+ * <p>
+ * Needs a database with the vanda schema, given with -p jdbcUrl=jdbc:postgresql://host:port/db?user=..&password=..
+ * (or the SPRING_DATASOURCE_URL environment variable). All the inserted records are rolled back.
+ * Run with "-prof gc" to compare the allocations (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@org.openjdk.jmh.annotations.Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class InsertMeasurementBenchmark {
+
+  private static final String STATION_ID = "B1234567";  //it is fake
+  private static final int EXAMINATION_TYPE_SC = 999925;  //it is fake
+
+  @Param("")
+  public String jdbcUrl;
+
+  private Handle handle;
+  private MeasurementDao measurementDao;
+  private Measurement measurement;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    String url = jdbcUrl.isEmpty() ? System.getenv("SPRING_DATASOURCE_URL") : jdbcUrl;
+    if (url == null || url.isEmpty()) {
+      throw new IllegalStateException(
+          "Set the database with -p jdbcUrl=... or SPRING_DATASOURCE_URL");
+    }
+
+    handle = Jdbi.create(url)
+        .installPlugin(new PostgresPlugin())
+        .installPlugin(new SqlObjectPlugin())
+        .open();
+    handle.begin();
+
+    MeasurementType measurementType = new MeasurementType();
+    measurementType.setExaminationTypeSc(EXAMINATION_TYPE_SC);
+    measurementType.setExaminationType("WaterLevel");
+    measurementType.setParameterSc(1233);
+    measurementType.setParameter("WaterLevel");
+    measurementType.setUnitSc(19);
+    measurementType.setUnit("CM");
+
+    Station station = new Station();
+    station.setStationId(STATION_ID);
+    station.setName("benchmark");
+    station.setGeometryX(12.34);
+    station.setGeometryY(56.78);
+    station.setGeometrySrid(25832);
+    station.getMeasurementTypes().add(measurementType);
+
+    handle.attach(StationDao.class).insertStation(station);
+    handle.attach(MeasurementTypeDao.class).insertMeasurementTypes(List.of(measurementType));
+
+    measurementDao = handle.attach(MeasurementDao.class);
+
+    measurement = new Measurement();
+    measurement.setStationId(STATION_ID);
+    measurement.setMeasurementPointNumber(1);
+    measurement.setExaminationTypeSc(EXAMINATION_TYPE_SC);
+    measurement.setMeasurementDateTime(OffsetDateTime.now(ZoneOffset.UTC).withNano(0));
+    measurement.setVandaEventTimestamp(OffsetDateTime.now(ZoneOffset.UTC));
+    measurement.setValue(12.34);
+    measurement.setIsCurrent(false);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    handle.rollback();
+    handle.close();
+  }
+
+  @Benchmark
+  public Measurement insertReturning() {
+    return measurementDao.insertMeasurement(measurement);
+  }
+
+  @Benchmark
+  public int insertWithoutReturning() {
+    return measurementDao.insertMeasurementRecord(measurement);
+  }
+}
@@ -0,0 +1,225 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.benchmark;
+
+import ch.qos.logback.classic.Level;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.DataSourcePoolStatistics;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.EventFilterHolder;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.VandaHEventConsumerConfig;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.dao.MeasurementDao;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper.EventMeasurementMapper;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper.EventModelDeserializer;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.Measurement;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementKey;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementWriteResult;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.service.ConsumerMetrics;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.service.DatabaseService;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.service.DeadLetterStore;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.service.EventCoalescer;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.service.EventWriteQueue;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.service.MeasurementStateCache;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.service.OffsetStore;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.service.VandaHEventProcessor;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * Measures the steps of VandaHEventProcessor.consume (the single record listener) on the decoded event
+ * corpus (events.jsonl), without Kafka and without a DB:
+ * <ul>
+ * <li>acceptEvent: the event filter (all or only examination types 25 and 27) and the filtered counter</li>
+ * <li>measurementFrom: mapping the event to a measurement (EventMeasurementMapper)</li>
+ * <li>consume: the whole listener method for records spread over 4 partitions, saving the accepted events
+ * with the DatabaseService, whose DAO is a stub that writes nothing (the updated and deleted measurements
+ * exist, the added ones do not, so nothing is logged)</li>
+ * <li>report: building the periodic report for 4 partitions (the pool statistics are empty without a pool)</li>
+ * </ul>
+ * The processor is built without Spring, its dependencies are set as its fields, and the private steps are
+ * called through method handles. The report period is 1 second. The processor's logger is set to WARN,
+ * so the accepted events and the report are not written, but the report message is still built.
+ * <p>
+ * One operation is one event (one report for report), so the score is events/sec and with "-prof gc"
+ * gc.alloc.rate.norm is the number of bytes allocated per event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@org.openjdk.jmh.annotations.Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ProcessorBenchmark {
+
+  private static final int PARTITIONS = 4;
+
+  // accepted examination types, all if empty
+  @Param({"", "25,27"})
+  public String examinationTypeSc;
+
+  private List<EventModel> events;
+  private List<ConsumerRecord<String, EventModel>> records;
+  private VandaHEventProcessor processor;
+  private AtomicLong lastReportTimestamp;
+  private MethodHandle acceptEvent;
+  private MethodHandle registerReceived;
+  private MethodHandle report;
+
+  @Setup
+  public void setup() throws IOException, ReflectiveOperationException {
+    ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(VandaHEventProcessor.class)).setLevel(Level.WARN);
+
+    ObjectReader eventReader = new ObjectMapper().readerFor(EventModel.class);
+    events = new ArrayList<>();
+    for (String message : EventDeserializationBenchmark.readCorpus()) {
+      events.add(eventReader.readValue(message));
+    }
+    long timestamp = System.currentTimeMillis();
+    records = new ArrayList<>();
+    for (int i = 0; i < events.size(); i++) {
+      EventModel event = events.get(i);
+      event.setPartition(i % PARTITIONS);
+      event.setOffset(i / PARTITIONS);
+      records.add(new ConsumerRecord<>("events", event.getPartition(), event.getOffset(), timestamp,
+          TimestampType.CREATE_TIME, 0, 0, null, event, new RecordHeaders(), Optional.empty()));
+    }
+
+    // the updated and deleted measurements exist, the added ones do not
+    Set<MeasurementKey> existing = new HashSet<>();
+    for (EventModel event : events) {
+      if (!VandaHEventProcessor.EVENT_MEASUREMENT_ADDED.equals(event.getEventType())) {
+        existing.add(MeasurementKey.of(event));
+      }
+    }
+
+    VandaHEventConsumerConfig config = new VandaHEventConsumerConfig();
+    setField(config, "saveDb", "");
+    setField(config, "reportPeriodSec", 1);
+    EventFilterHolder eventFilter = new EventFilterHolder(config);
+    eventFilter.reload(examinationTypeSc.isEmpty() ? null : examinationTypeSc, null);
+    EventModelDeserializer eventModelDeserializer = new EventModelDeserializer(eventReader, config, eventFilter);
+    MeasurementStateCache stateCache = new MeasurementStateCache(0);
+    DatabaseService dbService = new DatabaseService(null, measurementDao(existing), null, stateCache,
+        new OffsetStore(false, null, null, null), null);
+    EventCoalescer eventCoalescer = new EventCoalescer(0, 1);
+    EventWriteQueue writeQueue = new EventWriteQueue(0, 1, 0, 1);
+
+    processor = new VandaHEventProcessor();
+    setField(processor, "config", config);
+    setField(processor, "dbService", dbService);
+    setField(processor, "poolStatistics", new DataSourcePoolStatistics(new SimpleMeterRegistry()));
+    setField(processor, "eventModelDeserializer", eventModelDeserializer);
+    setField(processor, "eventFilter", eventFilter);
+    setField(processor, "stateCache", stateCache);
+    setField(processor, "eventCoalescer", eventCoalescer);
+    setField(processor, "offsetStore", new OffsetStore(false, null, null, null));
+    setField(processor, "deadLetterStore", new DeadLetterStore(null, 0, "events"));
+    setField(processor, "writeQueue", writeQueue);
+    setField(processor, "metrics", new ConsumerMetrics(new SimpleMeterRegistry(), eventModelDeserializer,
+        eventCoalescer, dbService, stateCache, writeQueue));
+    lastReportTimestamp = (AtomicLong) getField(processor, "lastReportTimestamp");
+
+    MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(VandaHEventProcessor.class, MethodHandles.lookup());
+    acceptEvent = lookup.findVirtual(VandaHEventProcessor.class, "acceptEvent",
+        MethodType.methodType(boolean.class, EventModel.class));
+    registerReceived = lookup.findVirtual(VandaHEventProcessor.class, "registerReceived",
+        MethodType.methodType(void.class, EventModel.class));
+    report = lookup.findVirtual(VandaHEventProcessor.class, "report", MethodType.methodType(void.class));
+  }
+
+  /**
+   * A DAO answering the statements of the single event saves without a DB
+   *
+   * @param existing the measurements with a current record
+   * @return measurement DAO
+   */
+  private static MeasurementDao measurementDao(Set<MeasurementKey> existing) {
+    return (MeasurementDao) Proxy.newProxyInstance(MeasurementDao.class.getClassLoader(),
+        new Class<?>[] {MeasurementDao.class}, (proxy, method, args) -> switch (method.getName()) {
+          case "lockMeasurements" -> 1;
+          case "writeMeasurement" -> {
+            MeasurementWriteResult result = new MeasurementWriteResult();
+            result.setInactivated(existing.contains(MeasurementKey.of((Measurement) args[0])) ? 1 : 0);
+            result.setInserted(1);
+            yield result;
+          }
+          case "inactivateMeasurementHistory" -> existing.contains(MeasurementKey.of((Measurement) args[0])) ? 1 : 0;
+          case "insertMeasurementRecord" -> 1;
+          default -> throw new UnsupportedOperationException(method.getName());
+        });
+  }
+
+  private static void setField(Object target, String name, Object value) {
+    Field field = ReflectionUtils.findField(target.getClass(), name);
+    ReflectionUtils.makeAccessible(field);
+    ReflectionUtils.setField(field, target, value);
+  }
+
+  private static Object getField(Object target, String name) {
+    Field field = ReflectionUtils.findField(target.getClass(), name);
+    ReflectionUtils.makeAccessible(field);
+    return ReflectionUtils.getField(field, target);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(EventDeserializationBenchmark.CORPUS_SIZE)
+  public void acceptEvent(Blackhole blackhole) throws Throwable {
+    for (EventModel event : events) {
+      blackhole.consume((boolean) acceptEvent.invokeExact(processor, event));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(EventDeserializationBenchmark.CORPUS_SIZE)
+  public void measurementFrom(Blackhole blackhole) {
+    for (EventModel event : events) {
+      blackhole.consume(EventMeasurementMapper.measurementFrom(event));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(EventDeserializationBenchmark.CORPUS_SIZE)
+  public void consume() {
+    for (ConsumerRecord<String, EventModel> record : records) {
+      processor.consume(record);
+    }
+  }
+
+  @Benchmark
+  public void report() throws Throwable {
+    for (int i = 0; i < PARTITIONS; i++) {
+      registerReceived.invokeExact(processor, events.get(i));
+    }
+    // the report is due, as after a period of "reportPeriodSec"
+    lastReportTimestamp.set(System.currentTimeMillis() - 2000);
+    report.invokeExact(processor);
+  }
+}
@@ -33,11 +33,19 @@ public class VandaHEventConsumerRunner implements CommandLineRunner {
 
       if ("start".equalsIgnoreCase(command)) {
         eventProcessor.startListener();
+      } else if ("backfill".equalsIgnoreCase(command)) {
+        eventProcessor.startBackfill();
+      } else if ("replay-dlq".equalsIgnoreCase(command)) {
+        eventProcessor.replayDeadLetters();
       } else {
         System.out.println(
-            "Vanda Hydrometry Event Consumer\n=====================\nUsage parameters: start [--options[=value]]");
+            "Vanda Hydrometry Event Consumer\n=====================\nUsage parameters: start|backfill|replay-dlq [--options[=value]]");
         System.out.println(BOLD_ON + "start" + FORMAT_OFF +
-            " commands will start the event hub client that will receive and process events.\n");
+            " commands will start the event hub client that will receive and process events.");
+        System.out.println(BOLD_ON + "backfill" + FORMAT_OFF +
+            " commands will start the event hub client that will bulk load the received events into the database until it catches up with the event stream, and then process events as start --saveDb.");
+        System.out.println(BOLD_ON + "replay-dlq" + FORMAT_OFF +
+            " commands will save to the database the events kept in the dead-letter store (events that could not be decoded or saved) and exit.\n");
 
         System.out.println(
             "Use the option --displayAll to display all the received (not only processed) raw json events to the console.");
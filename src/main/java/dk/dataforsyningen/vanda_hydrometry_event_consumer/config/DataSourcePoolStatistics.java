@@ -0,0 +1,78 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.config;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+import com.zaxxer.hikari.metrics.micrometer.MicrometerMetricsTrackerFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.concurrent.TimeUnit;
+import org.springframework.stereotype.Component;
+
+/**
+ * Registers the HikariCP connection pool meters (hikaricp.connections.*) in the meter registry
+ * and shows them in the periodic report (active, idle and waiting connections
+ * and the time waited for a connection).
+ * Spring Boot does not bind the pool meters itself when a MetricsTrackerFactory is set.
+ */
+@Component
+public class DataSourcePoolStatistics implements MetricsTrackerFactory {
+
+  private final MeterRegistry registry;
+
+  private final MicrometerMetricsTrackerFactory micrometerFactory;
+
+  private volatile String poolName;
+
+  private long reportedAcquireCount;
+  private double reportedAcquireMillis;
+  private double reportedTimeoutCount;
+
+  public DataSourcePoolStatistics(MeterRegistry registry) {
+    this.registry = registry;
+    this.micrometerFactory = new MicrometerMetricsTrackerFactory(registry);
+  }
+
+  @Override
+  public IMetricsTracker create(String poolName, PoolStats poolStats) {
+    this.poolName = poolName;
+    return micrometerFactory.create(poolName, poolStats);
+  }
+
+  /**
+   * Returns the current state of the pool and the connection wait times
+   * since the previous call, read from the pool meters.
+   *
+   * @return pool statistics or empty string if the pool has not been started
+   */
+  public synchronized String report() {
+    String pool = poolName;
+    if (pool == null) {
+      return "";
+    }
+
+    Timer acquire = registry.get("hikaricp.connections.acquire").tag("pool", pool).timer();
+    long totalCount = acquire.count();
+    double totalMillis = acquire.totalTime(TimeUnit.MILLISECONDS);
+    double totalTimeouts = registry.get("hikaricp.connections.timeout").tag("pool", pool).counter().count();
+    long count = totalCount - reportedAcquireCount;
+    double millis = totalMillis - reportedAcquireMillis;
+    long timeouts = (long) (totalTimeouts - reportedTimeoutCount);
+    reportedAcquireCount = totalCount;
+    reportedAcquireMillis = totalMillis;
+    reportedTimeoutCount = totalTimeouts;
+
+    return "DB pool active/idle/waiting: " + gauge("hikaricp.connections.active", pool) + "/" +
+        gauge("hikaricp.connections.idle", pool) + "/" + gauge("hikaricp.connections.pending", pool) +
+        " (max " + gauge("hikaricp.connections.max", pool) + ")" +
+        ", connection wait avg/max: " +
+        (count > 0 ? Math.round(millis * 1000 / count) / 1000.0 : 0.0) + "/" +
+        Math.round(acquire.max(TimeUnit.MICROSECONDS)) / 1000.0 + " ms" +
+        " (" + count + " connections" + (timeouts > 0 ? ", " + timeouts + " timeouts" : "") +
+        ")";
+  }
+
+  private long gauge(String name, String pool) {
+    return (long) registry.get(name).tag("pool", pool).gauge().value();
+  }
+}
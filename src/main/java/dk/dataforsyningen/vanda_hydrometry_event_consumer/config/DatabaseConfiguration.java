@@ -1,21 +1,24 @@
 package dk.dataforsyningen.vanda_hydrometry_event_consumer.config;
 
+import com.zaxxer.hikari.HikariDataSource;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.dao.ConsumerOffsetDao;
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.dao.MeasurementDao;
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.dao.MeasurementTypeDao;
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.dao.StationDao;
 import javax.sql.DataSource;
 import org.jdbi.v3.core.Jdbi;
+import org.jdbi.v3.core.statement.SqlStatements;
 import org.jdbi.v3.postgis.PostgisPlugin;
 import org.jdbi.v3.postgres.PostgresPlugin;
 import org.jdbi.v3.sqlobject.SqlObjectPlugin;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
-import org.springframework.jdbc.datasource.DriverManagerDataSource;
 import org.springframework.jdbc.datasource.TransactionAwareDataSourceProxy;
 
 /**
@@ -28,30 +31,47 @@ public class DatabaseConfiguration {
 
   /**
    * The SQL data source that Jdbi will connect to. https://jdbi.org/#_spring_5
+   * <p>
+   * The connections are pooled. The url and credentials are taken from "spring.datasource.*"
+   * and the pool (and driver) settings from "spring.datasource.hikari.*".
    *
+   * @param properties
+   * @param poolStatistics
    * @return DataSource
    */
   @Bean(name = "vandaHydroDataDS")
   @Primary
-  @ConfigurationProperties(prefix = "spring.datasource")
-  public DataSource dataSource() {
-    return new DriverManagerDataSource();
+  @ConfigurationProperties(prefix = "spring.datasource.hikari")
+  public HikariDataSource dataSource(DataSourceProperties properties,
+                                     DataSourcePoolStatistics poolStatistics) {
+    HikariDataSource dataSource = new HikariDataSource();
+    dataSource.setJdbcUrl(properties.getUrl());
+    dataSource.setUsername(properties.getUsername());
+    dataSource.setPassword(properties.getPassword());
+    if (properties.getDriverClassName() != null) {
+      dataSource.setDriverClassName(properties.getDriverClassName());
+    }
+    dataSource.setPoolName("vandaHydroDataPool");
+    dataSource.setMetricsTrackerFactory(poolStatistics);
+    return dataSource;
   }
 
   /**
-   * Creates the JDBI object
+   * Creates the JDBI object, timing the statements (see SqlStatementMetrics)
    *
    * @param ds
+   * @param sqlStatementMetrics
    * @return jdbi bean
    */
   @Bean
-  public Jdbi jdbi(@Qualifier("vandaHydroDataDS") DataSource ds) {
+  public Jdbi jdbi(@Qualifier("vandaHydroDataDS") DataSource ds, SqlStatementMetrics sqlStatementMetrics) {
 
     TransactionAwareDataSourceProxy proxy = new TransactionAwareDataSourceProxy(ds);
     Jdbi jdbi = Jdbi.create(proxy)
         .installPlugin(new PostgresPlugin())
         .installPlugin(new PostgisPlugin())
         .installPlugin(new SqlObjectPlugin());
+    jdbi.getConfig(SqlStatements.class).setSqlLogger(sqlStatementMetrics);
 
     return jdbi;
   }
@@ -70,4 +90,9 @@ public class DatabaseConfiguration {
   public MeasurementTypeDao measurementTypeDao(Jdbi jdbi) {
     return jdbi.onDemand(MeasurementTypeDao.class);
   }
+
+  @Bean
+  public ConsumerOffsetDao consumerOffsetDao(Jdbi jdbi) {
+    return jdbi.onDemand(ConsumerOffsetDao.class);
+  }
 }
@@ -0,0 +1,184 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.config;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable filter of the events to process, built once from the configuration:
+ * the accepted examination types as a sorted int array and the accepted event types as a bit mask.
+ */
+public final class EventFilter {
+
+  /**
+   * The event types with their bit in the event type mask
+   */
+  public enum EventType {
+    ADDED("MeasurementAdded", 'a'),
+    UPDATED("MeasurementUpdated", 'u'),
+    DELETED("MeasurementDeleted", 'd');
+
+    private static final EventType[] TYPES = values();
+
+    private final String eventName;
+    private final char option;
+    private final int bit;
+
+    EventType(String eventName, char option) {
+      this.eventName = eventName;
+      this.option = option;
+      this.bit = 1 << ordinal();
+    }
+
+    public String getEventName() {
+      return eventName;
+    }
+
+    /**
+     * Returns the event type with the given name
+     *
+     * @param eventName
+     * @return event type or null if unknown
+     */
+    public static EventType of(String eventName) {
+      for (EventType type : TYPES) {
+        if (type.eventName.equals(eventName)) {
+          return type;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Returns the event type with the given name
+     *
+     * @param chars
+     * @param offset
+     * @param length
+     * @return event type or null if unknown
+     */
+    public static EventType of(char[] chars, int offset, int length) {
+      for (EventType type : TYPES) {
+        if (type.matches(chars, offset, length)) {
+          return type;
+        }
+      }
+      return null;
+    }
+
+    private boolean matches(char[] chars, int offset, int length) {
+      if (eventName.length() != length) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (chars[offset + i] != eventName.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private static final int ALL_EVENT_TYPES = (1 << EventType.values().length) - 1;
+
+  private final int[] examinationTypes;  //sorted, empty accepts all
+
+  private final int eventTypeMask;
+
+  private EventFilter(int[] examinationTypes, int eventTypeMask) {
+    this.examinationTypes = examinationTypes;
+    this.eventTypeMask = eventTypeMask;
+  }
+
+  /**
+   * Creates the filter
+   *
+   * @param examinationTypes accepted examination types, all if empty
+   * @param additions
+   * @param updates
+   * @param deletions
+   * @return event filter
+   */
+  public static EventFilter of(List<Integer> examinationTypes, boolean additions, boolean updates,
+                               boolean deletions) {
+    int[] types = examinationTypes.stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+    int mask = (additions ? EventType.ADDED.bit : 0) |
+        (updates ? EventType.UPDATED.bit : 0) |
+        (deletions ? EventType.DELETED.bit : 0);
+    return new EventFilter(types, mask);
+  }
+
+  /**
+   * Creates the filter from the values in the form used by the configuration
+   *
+   * @param examinationTypeSc comma separated examination types, all if null or empty
+   * @param events event type options (any of 'a', 'u' and 'd'), all if null
+   * @return event filter
+   */
+  public static EventFilter of(String examinationTypeSc, String events) {
+    int[] types = parseExaminationTypes(examinationTypeSc).stream().mapToInt(Integer::intValue)
+        .sorted().distinct().toArray();
+    int mask = ALL_EVENT_TYPES;
+    if (events != null) {
+      mask = 0;
+      for (EventType type : EventType.values()) {
+        if (events.toLowerCase().indexOf(type.option) != -1) {
+          mask |= type.bit;
+        }
+      }
+    }
+    return new EventFilter(types, mask);
+  }
+
+  /**
+   * Parses the examination types in the form used by the configuration.
+   * The values are trimmed, the ones that are not integers are ignored.
+   *
+   * @param examinationTypeSc comma separated examination types
+   * @return the examination types, empty if null or empty
+   */
+  public static List<Integer> parseExaminationTypes(String examinationTypeSc) {
+    if (examinationTypeSc == null || examinationTypeSc.isBlank()) {
+      return List.of();
+    }
+    return Arrays.stream(examinationTypeSc.split(","))
+        .map(String::trim)
+        .filter(s -> s.matches("-?\\d+"))
+        .map(Integer::valueOf)
+        .toList();
+  }
+
+  public boolean acceptEventType(EventType eventType) {
+    return eventType != null && (eventTypeMask & eventType.bit) != 0;
+  }
+
+  public boolean acceptExaminationType(int examinationTypeSc) {
+    return examinationTypes.length == 0 ||
+        Arrays.binarySearch(examinationTypes, examinationTypeSc) >= 0;
+  }
+
+  /**
+   * Checks if the event is to be processed
+   *
+   * @param eventType the event name
+   * @param examinationTypeSc
+   * @return true if both the event type and the examination type are accepted
+   */
+  public boolean accept(String eventType, Integer examinationTypeSc) {
+    return acceptEventType(EventType.of(eventType)) &&
+        (examinationTypes.length == 0 ||
+            (examinationTypeSc != null && acceptExaminationType(examinationTypeSc)));
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder events = new StringBuilder();
+    for (EventType type : EventType.values()) {
+      if (acceptEventType(type)) {
+        events.append(type.option);
+      }
+    }
+    return "EventFilter [examinationTypeSc=" +
+        (examinationTypes.length == 0 ? "all" : Arrays.toString(examinationTypes)) +
+        ", events=" + events + "]";
+  }
+}
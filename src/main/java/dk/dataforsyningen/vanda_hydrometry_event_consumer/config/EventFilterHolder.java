@@ -0,0 +1,88 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedOperationParameter;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Holds the current event filter. The filter is built from the configuration
+ * (the "examinationTypeSc" property and the "events" option) on first use
+ * and can be replaced at runtime through JMX (see spring.jmx.enabled).
+ */
+@Component
+@ManagedResource(objectName = "dk.dataforsyningen.vanda_hydrometry_event_consumer:name=EventFilter",
+    description = "Filter of the events to process")
+public class EventFilterHolder {
+
+  private final Logger logger = LoggerFactory.getLogger(EventFilterHolder.class);
+
+  private final VandaHEventConsumerConfig config;
+
+  private volatile EventFilter filter;
+
+  public EventFilterHolder(VandaHEventConsumerConfig config) {
+    this.config = config;
+  }
+
+  /**
+   * Returns the current filter
+   *
+   * @return event filter
+   */
+  public EventFilter get() {
+    EventFilter current = filter;
+    if (current == null) {
+      current = reload();
+    }
+    return current;
+  }
+
+  /**
+   * Rebuilds the filter from the configuration
+   *
+   * @return the new filter
+   */
+  public EventFilter reload() {
+    return set(EventFilter.of(config.getExaminationTypeSc(), config.processAdditions(),
+        config.processUpdates(), config.processDeletions()));
+  }
+
+  /**
+   * Replaces the filter
+   *
+   * @param examinationTypeSc comma separated examination types, all if empty
+   * @param events event types (any of 'a', 'u' and 'd'), all if empty
+   * @return the new filter
+   */
+  public EventFilter reload(String examinationTypeSc, String events) {
+    return set(EventFilter.of(examinationTypeSc,
+        events == null || events.isBlank() ? null : events));
+  }
+
+  @ManagedOperation(description = "Rebuild the filter from the configuration")
+  public String reloadFromConfiguration() {
+    return reload().toString();
+  }
+
+  @ManagedOperation(description = "Replace the filter")
+  @ManagedOperationParameter(name = "examinationTypeSc", description = "Comma separated examination types, all if empty")
+  @ManagedOperationParameter(name = "events", description = "Event types: any of a, u and d, all if empty")
+  public String replace(String examinationTypeSc, String events) {
+    return reload(examinationTypeSc, events).toString();
+  }
+
+  @ManagedAttribute(description = "The current filter")
+  public String getFilter() {
+    return get().toString();
+  }
+
+  private EventFilter set(EventFilter newFilter) {
+    filter = newFilter;
+    logger.info("Event filter: " + newFilter);
+    return newFilter;
+  }
+}
@@ -0,0 +1,25 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Configure the JSON decoding of the events.
+ */
+@Configuration
+public class JsonConfiguration {
+
+  /**
+   * The reader decoding the event messages into EventModel.
+   * It is immutable and thread safe, so it is created once and shared.
+   *
+   * @return event reader bean
+   */
+  @Bean
+  public ObjectReader eventReader() {
+    return new ObjectMapper().readerFor(EventModel.class);
+  }
+}
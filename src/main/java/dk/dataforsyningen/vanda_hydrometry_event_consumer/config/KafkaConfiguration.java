@@ -0,0 +1,132 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.config;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper.EventModelDeserializer;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.service.ConsumerMetrics;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.service.DeadLetterStore;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.service.VandaHEventProcessor;
+import java.util.List;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.boot.autoconfigure.kafka.DefaultKafkaConsumerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.config.ContainerCustomizer;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.listener.BatchInterceptor;
+import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
+import org.springframework.kafka.listener.ContainerProperties;
+import org.springframework.kafka.listener.DefaultErrorHandler;
+import org.springframework.kafka.listener.RecordInterceptor;
+import org.springframework.util.backoff.ExponentialBackOff;
+
+/**
+ * Configure the Kafka consumer (in addition to the "spring.kafka.*" properties).
+ */
+@Configuration
+public class KafkaConfiguration {
+
+  private static final long RETRY_INITIAL_INTERVAL_MS = 1000;
+
+  /**
+   * The deserializer of the event messages. It is thread safe and shared by all the consumers.
+   *
+   * @param eventReader
+   * @param config
+   * @param eventFilter
+   * @return event deserializer bean
+   */
+  @Bean
+  public EventModelDeserializer eventModelDeserializer(ObjectReader eventReader,
+                                                       VandaHEventConsumerConfig config,
+                                                       EventFilterHolder eventFilter) {
+    return new EventModelDeserializer(eventReader, config, eventFilter);
+  }
+
+  /**
+   * Makes the consumer factory created from the properties decode the record values with the event deserializer.
+   *
+   * @param eventModelDeserializer
+   * @return consumer factory customizer bean
+   */
+  @Bean
+  @SuppressWarnings("unchecked")
+  public DefaultKafkaConsumerFactoryCustomizer eventDeserializerCustomizer(
+      EventModelDeserializer eventModelDeserializer) {
+    return consumerFactory -> ((DefaultKafkaConsumerFactory<String, EventModel>) consumerFactory)
+        .setValueDeserializerSupplier(() -> eventModelDeserializer);
+  }
+
+  /**
+   * Retries the events whose saving failed with a transient DB error (rethrown by the listeners):
+   * the record, or the whole poll for the batch listener, is received again after a back off
+   * doubling from 1 second up to "retryMaxIntervalMs". The offsets are not committed in the meantime.
+   * The events that were already saved are dropped as delayed when they are received again.
+   * <p>
+   * When the events are still not saved after "retryMaxElapsedMs" (0 for no limit) they are added
+   * to the dead-letter store, to be replayed later, and their offsets are committed.
+   *
+   * @param config
+   * @param deadLetterStore
+   * @return listener container error handler bean (used by the container factory created from the properties)
+   */
+  @Bean
+  public DefaultErrorHandler errorHandler(VandaHEventConsumerConfig config, DeadLetterStore deadLetterStore) {
+    ExponentialBackOff backOff = new ExponentialBackOff(RETRY_INITIAL_INTERVAL_MS, 2.0);
+    backOff.setMaxInterval(Math.max(config.getRetryMaxIntervalMs(), RETRY_INITIAL_INTERVAL_MS));
+    if (config.getRetryMaxElapsedMs() > 0) {
+      backOff.setMaxElapsedTime(config.getRetryMaxElapsedMs());
+    }
+    return new DefaultErrorHandler(deadLetterStore::add, backOff);
+  }
+
+  /**
+   * Makes the container of the queued listener acknowledge the records manually: they are acknowledged
+   * by the writer of the write queue once saved (see EventWriteQueue), the other containers keep
+   * "spring.kafka.listener.ack-mode".
+   *
+   * @return container customizer bean (used by the container factory created from the properties)
+   */
+  @Bean
+  public ContainerCustomizer<Object, Object, ConcurrentMessageListenerContainer<Object, Object>> queuedListenerCustomizer() {
+    return container -> {
+      if (VandaHEventProcessor.QUEUED_LISTENER_ID.equals(container.getListenerId())) {
+        container.getContainerProperties().setAckMode(ContainerProperties.AckMode.MANUAL);
+      }
+    };
+  }
+
+  /**
+   * Registers the position of each received record (see ConsumerMetrics.received), on the consumer thread
+   * where the consumer's end offsets can be read
+   *
+   * @param metrics
+   * @return record interceptor bean (used by the container factory created from the properties)
+   */
+  @Bean
+  public RecordInterceptor<Object, Object> positionRecordInterceptor(ConsumerMetrics metrics) {
+    return (record, consumer) -> {
+      metrics.received(record.topic(), record.partition(), record.offset(), consumer);
+      return record;
+    };
+  }
+
+  /**
+   * Registers the position of the last record of each partition in a poll (see ConsumerMetrics.received)
+   *
+   * @param metrics
+   * @return batch interceptor bean (used by the container factory created from the properties)
+   */
+  @Bean
+  public BatchInterceptor<Object, Object> positionBatchInterceptor(ConsumerMetrics metrics) {
+    return (records, consumer) -> {
+      for (TopicPartition partition : records.partitions()) {
+        List<ConsumerRecord<Object, Object>> partitionRecords = records.records(partition);
+        metrics.received(partition.topic(), partition.partition(),
+            partitionRecords.get(partitionRecords.size() - 1).offset(), consumer);
+      }
+      return records;
+    };
+  }
+}
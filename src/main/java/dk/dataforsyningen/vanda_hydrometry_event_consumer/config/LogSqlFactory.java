@@ -5,7 +5,9 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.sql.SQLException;
 import org.jdbi.v3.core.statement.SqlLogger;
+import org.jdbi.v3.core.statement.SqlStatements;
 import org.jdbi.v3.core.statement.StatementContext;
 import org.jdbi.v3.sqlobject.customizer.SqlStatementCustomizer;
 import org.jdbi.v3.sqlobject.customizer.SqlStatementCustomizerFactory;
@@ -13,6 +15,12 @@ import org.jdbi.v3.sqlobject.customizer.SqlStatementCustomizingAnnotation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Logs the SQL of the DAO's statements with level TRACE (logger of the DAO type).
+ * <p>
+ * The statement's logger is only attached when TRACE is enabled for the DAO, otherwise the statements keep
+ * the configured logger (see SqlStatementMetrics) and the SQL is never rendered.
+ */
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.TYPE)
 @SqlStatementCustomizingAnnotation(LogSqlFactory.Factory.class)
@@ -20,34 +28,44 @@ public @interface LogSqlFactory {
 
   class Factory implements SqlStatementCustomizerFactory {
 
-    private Logger log = null;
-
     private static void logSql(Logger log, StatementContext context) {
-      //System.out.println("Raw SQL:\n" + context.getRawSql());
-      //System.out.println("Parsed SQL:\n" + context.getParsedSql().getSql());
-      String sql = "" + context.getStatement();
-      if (context.getStatement() == null) {
-        sql = context.getRawSql();
+      if (!log.isTraceEnabled()) {
+        return;
       }
-      log.trace("Statement SQL:\n" + sql);
+      // the PG statement renders the SQL with its parameters
+      Object sql = context.getStatement() != null ? context.getStatement() : context.getRawSql();
+      log.trace("Statement SQL:\n{}", sql);
     }
 
     @Override
     public SqlStatementCustomizer createForType(Annotation annotation, Class sqlObjectType) {
 
-      log = LoggerFactory.getLogger(sqlObjectType);
+      Logger log = LoggerFactory.getLogger(sqlObjectType);
 
-      SqlLogger sqlLogger = new SqlLogger() {
-        @Override
-        public void logBeforeExecution(StatementContext context) {
-          logSql(log, context);
+      // the statement's own logger replaces the configured one (see SqlStatementMetrics), which is called as well
+      return statement -> {
+        if (!log.isTraceEnabled()) {
+          return;
         }
-        // @Override
-        // public void logAfterExecution(StatementContext context) {
-        // logSql(log, context);
-        // }
+        SqlLogger configuredLogger = statement.getConfig(SqlStatements.class).getSqlLogger();
+        statement.setSqlLogger(new SqlLogger() {
+          @Override
+          public void logBeforeExecution(StatementContext context) {
+            logSql(log, context);
+            configuredLogger.logBeforeExecution(context);
+          }
+
+          @Override
+          public void logAfterExecution(StatementContext context) {
+            configuredLogger.logAfterExecution(context);
+          }
+
+          @Override
+          public void logException(StatementContext context, SQLException ex) {
+            configuredLogger.logException(context, ex);
+          }
+        });
       };
-      return statement -> statement.setSqlLogger(sqlLogger);
     }
   }
 }
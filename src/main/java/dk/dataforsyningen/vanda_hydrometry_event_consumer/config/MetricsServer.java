@@ -0,0 +1,82 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.config;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+
+/**
+ * Serves the Prometheus scrape endpoint (http://host:metricsPort/metrics) with the meters of
+ * the Prometheus registry created by Spring Boot (see ConsumerMetrics).
+ * <p>
+ * The application is not a web application, so the endpoint is served by the JDK HTTP server.
+ * It is started with the listener (see VandaHEventProcessor.startListener), so the commands that
+ * exit (e.g. replay-dlq) do not wait for it.
+ */
+@Component
+public class MetricsServer {
+
+  private static final Logger logger = LoggerFactory.getLogger(MetricsServer.class);
+
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final VandaHEventConsumerConfig config;
+
+  private final ObjectProvider<PrometheusMeterRegistry> registry;
+
+  private HttpServer server;
+
+  public MetricsServer(VandaHEventConsumerConfig config, ObjectProvider<PrometheusMeterRegistry> registry) {
+    this.config = config;
+    this.registry = registry;
+  }
+
+  /**
+   * Starts serving the endpoint if "metricsPort" is set and the Prometheus registry exists.
+   * A port already in use is logged and the consumer goes on without the endpoint.
+   */
+  public synchronized void start() {
+    PrometheusMeterRegistry prometheusRegistry = registry.getIfAvailable();
+    if (server != null || config.getMetricsPort() <= 0 || prometheusRegistry == null) {
+      return;
+    }
+    try {
+      server = HttpServer.create(new InetSocketAddress(config.getMetricsPort()), 0);
+      server.createContext("/metrics", exchange -> scrape(prometheusRegistry, exchange));
+      server.start();
+      logger.info("Metrics served on port " + config.getMetricsPort() + " (/metrics)");
+    } catch (IOException e) {
+      server = null;
+      logger.error("Error starting the metrics endpoint on port " + config.getMetricsPort() + ": " +
+          e.getMessage());
+    }
+  }
+
+  @PreDestroy
+  public synchronized void stop() {
+    if (server != null) {
+      server.stop(0);
+      server = null;
+    }
+  }
+
+  private static void scrape(PrometheusMeterRegistry prometheusRegistry, HttpExchange exchange) throws IOException {
+    try (exchange) {
+      ByteArrayOutputStream body = new ByteArrayOutputStream(16 * 1024);
+      prometheusRegistry.scrape(body);
+      exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      exchange.sendResponseHeaders(200, body.size());
+      try (OutputStream out = exchange.getResponseBody()) {
+        body.writeTo(out);
+      }
+    }
+  }
+}
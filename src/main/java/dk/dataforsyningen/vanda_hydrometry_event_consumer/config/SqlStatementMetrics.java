@@ -0,0 +1,107 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.jdbi.v3.core.extension.ExtensionMethod;
+import org.jdbi.v3.core.statement.SqlLogger;
+import org.jdbi.v3.core.statement.StatementContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Times the executed SQL statements: timer "vanda.db.statement" (with percentiles) tagged with
+ * the DAO method (e.g. "MeasurementDao.writeMeasurement", "other" for the statements not from a DAO)
+ * and the outcome (success or error).
+ * <p>
+ * The statements slower than "slowQueryMs" (0 disables it) are logged with level WARN, with their SQL and
+ * parameters. The SQL is only rendered for those.
+ * <p>
+ * Installed as the Jdbi SQL logger (see DatabaseConfiguration), LogSqlFactory keeps calling it.
+ */
+@Component
+public class SqlStatementMetrics implements SqlLogger {
+
+  public static final String TIMER_NAME = "vanda.db.statement";
+
+  private static final Logger logger = LoggerFactory.getLogger(SqlStatementMetrics.class);
+
+  private static final String OTHER_STATEMENT = "other";
+
+  private final MeterRegistry registry;
+
+  // by DAO method, so no tags are built for each statement
+  private final ConcurrentHashMap<Method, Timer> successTimers = new ConcurrentHashMap<>();
+
+  private final ConcurrentHashMap<Method, Timer> errorTimers = new ConcurrentHashMap<>();
+
+  private final Timer otherSuccessTimer;
+
+  private final Timer otherErrorTimer;
+
+  private final long slowQueryNanos;
+
+  public SqlStatementMetrics(MeterRegistry registry, VandaHEventConsumerConfig config) {
+    this.registry = registry;
+    this.slowQueryNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(config.getSlowQueryMs(), 0));
+    this.otherSuccessTimer = timer(OTHER_STATEMENT, "success");
+    this.otherErrorTimer = timer(OTHER_STATEMENT, "error");
+  }
+
+  @Override
+  public void logAfterExecution(StatementContext context) {
+    long nanos = context.getElapsedTime(ChronoUnit.NANOS);
+    timer(context, successTimers, otherSuccessTimer, "success").record(nanos, TimeUnit.NANOSECONDS);
+    if (slowQueryNanos > 0 && nanos >= slowQueryNanos) {
+      logSlowQuery(context, nanos);
+    }
+  }
+
+  @Override
+  public void logException(StatementContext context, SQLException ex) {
+    if (context.getExecutionMoment() != null && context.getExceptionMoment() != null) {
+      timer(context, errorTimers, otherErrorTimer, "error")
+          .record(Duration.between(context.getExecutionMoment(), context.getExceptionMoment()));
+    }
+  }
+
+  private static void logSlowQuery(StatementContext context, long nanos) {
+    ExtensionMethod extensionMethod = context.getExtensionMethod();
+    // the PG statement renders the SQL with its parameters
+    Object sql = context.getStatement() != null ? context.getStatement() : context.getRawSql();
+    logger.warn("Slow statement {} took {} ms:\n{}",
+        extensionMethod != null ?
+            extensionMethod.getType().getSimpleName() + "." + extensionMethod.getMethod().getName() :
+            OTHER_STATEMENT,
+        TimeUnit.NANOSECONDS.toMillis(nanos), sql);
+  }
+
+  private Timer timer(StatementContext context, ConcurrentHashMap<Method, Timer> timers, Timer otherTimer,
+                      String outcome) {
+    ExtensionMethod extensionMethod = context.getExtensionMethod();
+    if (extensionMethod == null) {
+      return otherTimer;
+    }
+    Timer timer = timers.get(extensionMethod.getMethod());
+    if (timer == null) {
+      timer = timers.computeIfAbsent(extensionMethod.getMethod(), method ->
+          timer(extensionMethod.getType().getSimpleName() + "." + method.getName(), outcome));
+    }
+    return timer;
+  }
+
+  private Timer timer(String statement, String outcome) {
+    return Timer.builder(TIMER_NAME)
+        .description("Execution time of the SQL statements")
+        .tag("statement", statement)
+        .tag("outcome", outcome)
+        .publishPercentiles(0.5, 0.95, 0.99)
+        .register(registry);
+  }
+}
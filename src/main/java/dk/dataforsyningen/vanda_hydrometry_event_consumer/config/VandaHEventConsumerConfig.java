@@ -1,7 +1,6 @@
 package dk.dataforsyningen.vanda_hydrometry_event_consumer.config;
 
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.VandaHEventConsumerApplication;
-import java.util.ArrayList;
 import java.util.List;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
@@ -25,6 +24,46 @@ public class VandaHEventConsumerConfig {
   private int reportPeriodSec;
   @Value("${dk.dataforsyningen.vanda_hydrometry_event_consumer.examinationTypeSc:#{null}}")
   private String examinationTypeSc;
+  @Value("${dk.dataforsyningen.vanda_hydrometry_event_consumer.batchListener:#{false}}")
+  private boolean batchListener;
+  @Value("${dk.dataforsyningen.vanda_hydrometry_event_consumer.workerLanes:#{1}}")
+  private int workerLanes;
+  @Value("${dk.dataforsyningen.vanda_hydrometry_event_consumer.virtualThreads:#{false}}")
+  private boolean virtualThreads;
+  @Value("${dk.dataforsyningen.vanda_hydrometry_event_consumer.stateCacheSize:#{0}}")
+  private int stateCacheSize;
+  @Value("${dk.dataforsyningen.vanda_hydrometry_event_consumer.stateCacheWarmupHours:#{24}}")
+  private int stateCacheWarmupHours;
+  @Value("${dk.dataforsyningen.vanda_hydrometry_event_consumer.coalesceWindowMs:#{0}}")
+  private long coalesceWindowMs;
+  @Value("${dk.dataforsyningen.vanda_hydrometry_event_consumer.coalesceMaxMeasurements:#{10000}}")
+  private int coalesceMaxMeasurements;
+  @Value("${dk.dataforsyningen.vanda_hydrometry_event_consumer.retryMaxIntervalMs:#{60000}}")
+  private long retryMaxIntervalMs;
+  @Value("${dk.dataforsyningen.vanda_hydrometry_event_consumer.retryMaxElapsedMs:#{1800000}}")
+  private long retryMaxElapsedMs;
+  @Value("${dk.dataforsyningen.vanda_hydrometry_event_consumer.offsetStore:#{false}}")
+  private boolean offsetStore;
+  @Value("${dk.dataforsyningen.vanda_hydrometry_event_consumer.deadLetterDir:#{null}}")
+  private String deadLetterDir;
+  @Value("${dk.dataforsyningen.vanda_hydrometry_event_consumer.deadLetterSegmentMb:#{64}}")
+  private int deadLetterSegmentMb;
+  @Value("${dk.dataforsyningen.vanda_hydrometry_event_consumer.deadLetterReplayBatchSize:#{500}}")
+  private int deadLetterReplayBatchSize;
+  @Value("${dk.dataforsyningen.vanda_hydrometry_event_consumer.writeQueueCapacity:#{0}}")
+  private int writeQueueCapacity;
+  @Value("${dk.dataforsyningen.vanda_hydrometry_event_consumer.writeQueueHighWatermark:#{8000}}")
+  private int writeQueueHighWatermark;
+  @Value("${dk.dataforsyningen.vanda_hydrometry_event_consumer.writeQueueLowWatermark:#{2000}}")
+  private int writeQueueLowWatermark;
+  @Value("${dk.dataforsyningen.vanda_hydrometry_event_consumer.writeQueueBatchSize:#{500}}")
+  private int writeQueueBatchSize;
+  @Value("${dk.dataforsyningen.vanda_hydrometry_event_consumer.metricsPort:#{0}}")
+  private int metricsPort;
+  @Value("${dk.dataforsyningen.vanda_hydrometry_event_consumer.slowQueryMs:#{0}}")
+  private long slowQueryMs;
+  @Value("${dk.dataforsyningen.vanda_hydrometry_event_consumer.eventLogSampling:#{1}}")
+  private int eventLogSampling;
 
   /**
    * parse the arguments list and retrieves the first command
@@ -62,7 +101,8 @@ public class VandaHEventConsumerConfig {
   }
 
   public boolean isSaveDb() {
-    return saveDb != null;
+    //the backfill and replay-dlq commands always save
+    return saveDb != null || "backfill".equals(command) || "replay-dlq".equals(command);
   }
 
   public boolean processAdditions() {
@@ -81,23 +121,102 @@ public class VandaHEventConsumerConfig {
     return reportPeriodSec;
   }
 
+  public boolean isBatchListener() {
+    return batchListener;
+  }
+
+  public void setBatchListener(boolean batchListener) {
+    this.batchListener = batchListener;
+  }
+
+  public int getWorkerLanes() {
+    return workerLanes;
+  }
+
+  public boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  public int getStateCacheSize() {
+    return stateCacheSize;
+  }
+
+  public int getStateCacheWarmupHours() {
+    return stateCacheWarmupHours;
+  }
+
+  public long getCoalesceWindowMs() {
+    return coalesceWindowMs;
+  }
+
+  public int getCoalesceMaxMeasurements() {
+    return coalesceMaxMeasurements;
+  }
+
+  public long getRetryMaxIntervalMs() {
+    return retryMaxIntervalMs;
+  }
+
+  public long getRetryMaxElapsedMs() {
+    return retryMaxElapsedMs;
+  }
+
+  public boolean isOffsetStore() {
+    return offsetStore;
+  }
+
+  public String getDeadLetterDir() {
+    return deadLetterDir;
+  }
+
+  public int getDeadLetterSegmentMb() {
+    return deadLetterSegmentMb;
+  }
+
+  public int getDeadLetterReplayBatchSize() {
+    return deadLetterReplayBatchSize;
+  }
+
+  public int getWriteQueueCapacity() {
+    return writeQueueCapacity;
+  }
+
+  public int getWriteQueueHighWatermark() {
+    return writeQueueHighWatermark;
+  }
+
+  public int getWriteQueueLowWatermark() {
+    return writeQueueLowWatermark;
+  }
+
+  public int getWriteQueueBatchSize() {
+    return writeQueueBatchSize;
+  }
+
+  public int getMetricsPort() {
+    return metricsPort;
+  }
+
+  public long getSlowQueryMs() {
+    return slowQueryMs;
+  }
+
+  public int getEventLogSampling() {
+    return eventLogSampling;
+  }
+
   public boolean isEnableDbTest() {
     return enableDbTest;
   }
 
+  /**
+   * Returns the examination types to process, parsed as the event filter does
+   * (the filter is built once from them, see EventFilterHolder)
+   *
+   * @return examination types, empty if all are processed
+   */
   public List<Integer> getExaminationTypeSc() {
-    ArrayList<Integer> output = new ArrayList<>();
-    if (examinationTypeSc != null && !examinationTypeSc.isEmpty()) {
-      String[] values = examinationTypeSc.split(",");
-      for (String s : values) {
-        try {
-          output.add(Integer.parseInt(s));
-        } catch (NumberFormatException ex) {
-          //do nothing
-        }
-      }
-    }
-    return output;
+    return EventFilter.parseExaminationTypes(examinationTypeSc);
   }
 
   @Override
@@ -108,6 +227,26 @@ public class VandaHEventConsumerConfig {
         ",\nisDisplayData=" + isDisplayData() +
         ",\nisSaveDb=" + isSaveDb() +
         ",\ngetReportPeriodSec=" + getReportPeriodSec() +
+        ",\nisBatchListener=" + isBatchListener() +
+        ",\ngetWorkerLanes=" + getWorkerLanes() +
+        ",\nisVirtualThreads=" + isVirtualThreads() +
+        ",\ngetStateCacheSize=" + getStateCacheSize() +
+        ",\ngetStateCacheWarmupHours=" + getStateCacheWarmupHours() +
+        ",\ngetCoalesceWindowMs=" + getCoalesceWindowMs() +
+        ",\ngetCoalesceMaxMeasurements=" + getCoalesceMaxMeasurements() +
+        ",\ngetRetryMaxIntervalMs=" + getRetryMaxIntervalMs() +
+        ",\ngetRetryMaxElapsedMs=" + getRetryMaxElapsedMs() +
+        ",\nisOffsetStore=" + isOffsetStore() +
+        ",\ngetDeadLetterDir=" + getDeadLetterDir() +
+        ",\ngetDeadLetterSegmentMb=" + getDeadLetterSegmentMb() +
+        ",\ngetDeadLetterReplayBatchSize=" + getDeadLetterReplayBatchSize() +
+        ",\ngetWriteQueueCapacity=" + getWriteQueueCapacity() +
+        ",\ngetWriteQueueHighWatermark=" + getWriteQueueHighWatermark() +
+        ",\ngetWriteQueueLowWatermark=" + getWriteQueueLowWatermark() +
+        ",\ngetWriteQueueBatchSize=" + getWriteQueueBatchSize() +
+        ",\ngetMetricsPort=" + getMetricsPort() +
+        ",\ngetSlowQueryMs=" + getSlowQueryMs() +
+        ",\ngetEventLogSampling=" + getEventLogSampling() +
         ",\nevents=" + events
         + "\n]";
   }
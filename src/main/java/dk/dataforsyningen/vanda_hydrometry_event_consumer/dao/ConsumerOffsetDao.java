@@ -0,0 +1,61 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.dao;
+
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.LogSqlFactory;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper.ConsumerOffsetMapper;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.ConsumerOffset;
+import java.util.List;
+import org.jdbi.v3.sqlobject.config.RegisterRowMapper;
+import org.jdbi.v3.sqlobject.customizer.Bind;
+import org.jdbi.v3.sqlobject.customizer.BindBean;
+import org.jdbi.v3.sqlobject.statement.SqlBatch;
+import org.jdbi.v3.sqlobject.statement.SqlQuery;
+import org.jdbi.v3.sqlobject.statement.SqlUpdate;
+
+
+@LogSqlFactory
+public interface ConsumerOffsetDao {
+
+  /**
+   * Read the stored offsets of the consumer group in the partitions of the topic
+   *
+   * @param consumerGroup
+   * @param topic
+   * @return list of offsets, one per partition
+   */
+  @SqlQuery("""
+      select
+      	consumer_group,
+      	topic,
+      	partition,
+      	next_offset
+      from vanda.consumer_offset
+      where consumer_group = :consumerGroup
+      	and topic = :topic
+      order by partition
+      """)
+  @RegisterRowMapper(ConsumerOffsetMapper.class)
+  List<ConsumerOffset> readOffsets(@Bind String consumerGroup, @Bind String topic);
+
+  /**
+   * Inserts the offsets or moves the existing ones forward (an offset is never moved back)
+   *
+   * @param offsets
+   */
+  @SqlBatch("""
+      insert into vanda.consumer_offset (consumer_group, topic, partition, next_offset, updated)
+      values (:consumerGroup, :topic, :partition, :nextOffset, now())
+      on conflict (consumer_group, topic, partition) do update
+      	set next_offset = greatest(consumer_offset.next_offset, EXCLUDED.next_offset),
+      		updated = EXCLUDED.updated
+      """)
+  void saveOffsets(@BindBean List<ConsumerOffset> offsets);
+
+  /**
+   * Deletes the stored offsets of the consumer group in the partitions of the topic
+   *
+   * @param consumerGroup
+   * @param topic
+   */
+  @SqlUpdate("delete from vanda.consumer_offset where consumer_group = :consumerGroup and topic = :topic")
+  void deleteOffsets(@Bind String consumerGroup, @Bind String topic);
+}
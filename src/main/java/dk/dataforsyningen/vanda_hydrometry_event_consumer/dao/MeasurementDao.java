@@ -1,13 +1,25 @@
 package dk.dataforsyningen.vanda_hydrometry_event_consumer.dao;
 
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.LogSqlFactory;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper.BulkLoadResultMapper;
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper.MeasurementMapper;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper.MeasurementStateMapper;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper.MeasurementWriteResultMapper;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.BulkLoadResult;
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.Measurement;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementState;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementWriteResult;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.SourcePosition;
 import java.time.OffsetDateTime;
 import java.util.List;
+import org.jdbi.v3.sqlobject.config.RegisterConstructorMapper;
 import org.jdbi.v3.sqlobject.config.RegisterRowMapper;
 import org.jdbi.v3.sqlobject.customizer.Bind;
 import org.jdbi.v3.sqlobject.customizer.BindBean;
+import org.jdbi.v3.sqlobject.customizer.BindBeanList;
+import org.jdbi.v3.sqlobject.customizer.BindList;
+import org.jdbi.v3.sqlobject.customizer.BindMethodsList;
+import org.jdbi.v3.sqlobject.statement.SqlBatch;
 import org.jdbi.v3.sqlobject.statement.SqlQuery;
 import org.jdbi.v3.sqlobject.statement.SqlUpdate;
 
@@ -24,7 +36,10 @@ public interface MeasurementDao {
       	value,
       	value_elevation_corrected,
       	is_current,
-      	created
+      	created,
+      	source_topic,
+      	source_partition,
+      	source_offset
       from vanda.measurement
       where
       	station_id = :stationId
@@ -50,7 +65,10 @@ public interface MeasurementDao {
       	value,
       	value_elevation_corrected,
       	is_current,
-      	created
+      	created,
+      	source_topic,
+      	source_partition,
+      	source_offset
       from vanda.measurement
       where
       	station_id = :stationId
@@ -86,18 +104,393 @@ public interface MeasurementDao {
 
   /**
    * Add a new record for the given measurement if its timestamp is null
-   * or newer than the timestamp of the current record
+   * or newer than the timestamp of the current record.
+   * Returns the inserted record, used by tests and tooling.
    *
    * @param measurement
    */
   @SqlQuery("""
-      insert into vanda.measurement (station_id, measurement_date_time, vanda_event_timestamp, measurement_point_number, examination_type_sc, value, value_elevation_corrected, is_current, created)
-      values (:stationId, :measurementDateTime, :vandaEventTimestamp, :measurementPointNumber, :examinationTypeSc, :value, :valueElevationCorrected, :isCurrent, now())
+      insert into vanda.measurement (station_id, measurement_date_time, vanda_event_timestamp, measurement_point_number, examination_type_sc, value, value_elevation_corrected, is_current, created, source_topic, source_partition, source_offset)
+      values (:stationId, :measurementDateTime, :vandaEventTimestamp, :measurementPointNumber, :examinationTypeSc, :value, :valueElevationCorrected, :isCurrent, now(), :sourceTopic, :sourcePartition, :sourceOffset)
       returning *
       """)
   @RegisterRowMapper(MeasurementMapper.class)
   Measurement insertMeasurement(@BindBean Measurement measurement);
 
+  /**
+   * Add a new record for the given measurement without reading it back
+   *
+   * @param measurement
+   * @return number of inserted records
+   */
+  @SqlUpdate("""
+      insert into vanda.measurement (station_id, measurement_date_time, vanda_event_timestamp, measurement_point_number, examination_type_sc, value, value_elevation_corrected, is_current, created, source_topic, source_partition, source_offset)
+      values (:stationId, :measurementDateTime, :vandaEventTimestamp, :measurementPointNumber, :examinationTypeSc, :value, :valueElevationCorrected, :isCurrent, now(), :sourceTopic, :sourcePartition, :sourceOffset)
+      """)
+  int insertMeasurementRecord(@BindBean Measurement measurement);
+
+
+  /**
+   * Add the given measurement as a new record in its history in one statement:
+   * <p>
+   * - if checkDuplicate, check if a record was already written from the same event (same source position:
+   * topic, partition and offset)
+   * - check if the measurement's timestamp is delayed (the history already has the same or a later timestamp)
+   * - if neither, set is_current to false on the active records of the history
+   * - and add the new record
+   * <p>
+   * The modifying sub-statements see the same snapshot, so the deactivation does not touch the new record.
+   *
+   * @param measurement
+   * @param checkDuplicate
+   * @return whether the measurement was a duplicate or delayed and the number of deactivated and inserted records
+   */
+  @SqlQuery("""
+      with duplicate as (
+      	select :checkDuplicate and exists (
+      		select 1
+      		from vanda.measurement
+      		where
+      			source_topic = :sourceTopic
+      			and source_partition = :sourcePartition
+      			and source_offset = :sourceOffset
+      	) as duplicate
+      ),
+      delayed as (
+      	select (select duplicate from duplicate) or count(*) > 0 as delayed
+      	from vanda.measurement
+      	where
+      		station_id = :stationId
+      		and examination_type_sc = :examinationTypeSc
+      		and measurement_point_number = :measurementPointNumber
+      		and measurement_date_time = :measurementDateTime
+      		and ((vanda_event_timestamp is not null and vanda_event_timestamp >= :vandaEventTimestamp)
+      			or (vanda_event_timestamp is null and created >= :vandaEventTimestamp))
+      ),
+      inactivated as (
+      	update vanda.measurement set is_current = false
+      	where
+      		station_id = :stationId
+      		and measurement_date_time = :measurementDateTime
+      		and measurement_point_number = :measurementPointNumber
+      		and examination_type_sc = :examinationTypeSc
+      		and is_current = true
+      		and not (select delayed from delayed)
+      	returning 1
+      ),
+      inserted as (
+      	insert into vanda.measurement (station_id, measurement_date_time, vanda_event_timestamp, measurement_point_number, examination_type_sc, value, value_elevation_corrected, is_current, created, source_topic, source_partition, source_offset)
+      	select :stationId, :measurementDateTime, cast(:vandaEventTimestamp as timestamptz), :measurementPointNumber, :examinationTypeSc, cast(:value as double precision), cast(:valueElevationCorrected as double precision), :isCurrent, now(), cast(:sourceTopic as text), cast(:sourcePartition as integer), cast(:sourceOffset as bigint)
+      	where not (select delayed from delayed)
+      	returning 1
+      )
+      select
+      	(select duplicate from duplicate) as duplicate,
+      	(select delayed from delayed) and not (select duplicate from duplicate) as delayed,
+      	(select count(*) from inactivated) as inactivated,
+      	(select count(*) from inserted) as inserted
+      """)
+  @RegisterRowMapper(MeasurementWriteResultMapper.class)
+  MeasurementWriteResult writeMeasurement(@BindBean Measurement measurement, @Bind boolean checkDuplicate);
+
+  /**
+   * Read the history summary (latest timestamp and whether a current record exists)
+   * of all the given measurements in one query. Measurements without history are not returned.
+   *
+   * @param measurements
+   * @return list of measurement states
+   */
+  @SqlQuery("""
+      select
+      	m.station_id,
+      	m.measurement_point_number,
+      	m.examination_type_sc,
+      	m.measurement_date_time,
+      	max(coalesce(m.vanda_event_timestamp, m.created)) as latest_timestamp,
+      	bool_or(m.is_current) as is_current
+      from vanda.measurement m
+      join (values <measurements>) as k(station_id, measurement_point_number, examination_type_sc, measurement_date_time)
+      	on m.station_id = k.station_id
+      	and m.measurement_point_number = k.measurement_point_number
+      	and m.examination_type_sc = k.examination_type_sc
+      	and m.measurement_date_time = k.measurement_date_time
+      group by m.station_id, m.measurement_point_number, m.examination_type_sc, m.measurement_date_time
+      """)
+  @RegisterRowMapper(MeasurementStateMapper.class)
+  List<MeasurementState> readMeasurementStates(
+      @BindBeanList(value = "measurements", propertyNames = {"stationId", "measurementPointNumber",
+          "examinationTypeSc", "measurementDateTime"}) List<Measurement> measurements);
+
+  /**
+   * Read the history summary of the measurements having records written since the given time,
+   * the most recently written first. Used to fill the measurement state cache on startup.
+   *
+   * @param since
+   * @param allExaminationTypes if true the examination types are not filtered
+   * @param examinationTypes
+   * @param limit max number of measurements
+   * @return list of measurement states
+   */
+  @SqlQuery("""
+      select
+      	m.station_id,
+      	m.measurement_point_number,
+      	m.examination_type_sc,
+      	m.measurement_date_time,
+      	max(coalesce(m.vanda_event_timestamp, m.created)) as latest_timestamp,
+      	bool_or(m.is_current) as is_current
+      from vanda.measurement m
+      join (
+      	select distinct station_id, measurement_point_number, examination_type_sc, measurement_date_time
+      	from vanda.measurement
+      	where
+      		coalesce(vanda_event_timestamp, created) >= :since
+      		and (:allExaminationTypes or examination_type_sc in (<examinationTypes>))
+      ) k
+      	on m.station_id = k.station_id
+      	and m.measurement_point_number = k.measurement_point_number
+      	and m.examination_type_sc = k.examination_type_sc
+      	and m.measurement_date_time = k.measurement_date_time
+      group by m.station_id, m.measurement_point_number, m.examination_type_sc, m.measurement_date_time
+      order by latest_timestamp desc
+      limit :limit
+      """)
+  @RegisterRowMapper(MeasurementStateMapper.class)
+  List<MeasurementState> readRecentMeasurementStates(@Bind OffsetDateTime since,
+                                                     @Bind boolean allExaminationTypes,
+                                                     @BindList(value = "examinationTypes", onEmpty = BindList.EmptyHandling.NULL_STRING) List<Integer> examinationTypes,
+                                                     @Bind int limit);
+
+  /**
+   * Lock the given measurements until the end of the transaction (transaction level advisory locks),
+   * so that concurrent transactions writing the same measurements are executed one after the other.
+   * The locks are taken in a fixed order to avoid deadlocks.
+   *
+   * @param measurements
+   * @return number of locked measurements
+   */
+  @SqlQuery("""
+      select count(pg_advisory_xact_lock(k.lock_key))
+      from (
+      	select distinct hashtextextended(cast(station_id as text) || '/' || measurement_point_number || '/'
+      		|| examination_type_sc || '/' || cast(measurement_date_time as text), 0) as lock_key
+      	from (values <measurements>) as m(station_id, measurement_point_number, examination_type_sc, measurement_date_time)
+      	order by lock_key
+      ) k
+      """)
+  int lockMeasurements(
+      @BindBeanList(value = "measurements", propertyNames = {"stationId", "measurementPointNumber",
+          "examinationTypeSc", "measurementDateTime"}) List<Measurement> measurements);
+
+  /**
+   * Read which of the given source positions (event hub partition and offset) of the topic have a record,
+   * i.e. were already written
+   *
+   * @param sourceTopic
+   * @param positions
+   * @return list of written source positions
+   */
+  @SqlQuery("""
+      select distinct m.source_partition, m.source_offset
+      from vanda.measurement m
+      join (values <positions>) as p(source_partition, source_offset)
+      	on m.source_topic = :sourceTopic
+      	and m.source_partition = p.source_partition
+      	and m.source_offset = p.source_offset
+      """)
+  @RegisterConstructorMapper(SourcePosition.class)
+  List<SourcePosition> readWrittenSourcePositions(@Bind String sourceTopic,
+      @BindMethodsList(value = "positions", methodNames = {"sourcePartition", "sourceOffset"}) List<SourcePosition> positions);
+
+  /**
+   * Tells whether a record was written from the event at the given source position
+   *
+   * @param sourceTopic
+   * @param sourcePartition
+   * @param sourceOffset
+   * @return true if written
+   */
+  @SqlQuery("""
+      select exists (
+      	select 1
+      	from vanda.measurement
+      	where
+      		source_topic = :sourceTopic
+      		and source_partition = :sourcePartition
+      		and source_offset = :sourceOffset
+      )
+      """)
+  boolean isSourcePositionWritten(@Bind String sourceTopic, @Bind int sourcePartition, @Bind long sourceOffset);
+
+  /**
+   * Create the staging table of the bulk load in the session if it does not exist.
+   * It is a temporary table emptied at the end of each transaction.
+   * The events are copied into it by MeasurementCopyEncoder (same columns in the same order),
+   * event_type being 0 for additions, 1 for updates and 2 for deletions.
+   */
+  @SqlUpdate("""
+      create temporary table if not exists measurement_staging (
+      	seq bigint not null,
+      	event_type smallint not null,
+      	station_id text not null,
+      	measurement_point_number integer not null,
+      	examination_type_sc integer not null,
+      	measurement_date_time timestamptz not null,
+      	vanda_event_timestamp timestamptz,
+      	value double precision,
+      	value_elevation_corrected double precision,
+      	source_partition integer,
+      	source_offset bigint
+      ) on commit delete rows
+      """)
+  void createStagingTable();
+
+  /**
+   * Lock the staged measurements until the end of the transaction, as lockMeasurements.
+   *
+   * @return number of locked measurements
+   */
+  @SqlQuery("""
+      select count(pg_advisory_xact_lock(k.lock_key))
+      from (
+      	select distinct hashtextextended(cast(station_id as text) || '/' || measurement_point_number || '/'
+      		|| examination_type_sc || '/' || cast(measurement_date_time as text), 0) as lock_key
+      	from measurement_staging
+      	order by lock_key
+      ) k
+      """)
+  int lockStagedMeasurements();
+
+  /**
+   * Apply the staged events (in the staging order) to the measurements' history in one statement,
+   * with the rules of the add, update and delete operations:
+   * <p>
+   * - an addition or update is delayed if its timestamp is not after the latest timestamp of the
+   * measurement's history and of the accepted staged events before it, delayed events are dropped
+   * - a deletion is dropped if the measurement has no current record at that point
+   * <p>
+   * Whether an event is accepted depends on the events accepted before it, so the events of each measurement
+   * are checked one after the other (recursively, from the history's state), the measurements together:
+   * the statement has as many steps as the largest number of staged events of a measurement.
+   * - the current records of the changed measurements are deactivated
+   * - the remaining events are inserted, only the last of a measurement being current unless it is a deletion
+   * <p>
+   * If checkDuplicates, the events already written (a record has the same source position) are skipped first.
+   *
+   * @param checkDuplicates
+   * @param sourceTopic the topic of the staged events
+   * @return number of staged events, duplicates, deactivated and inserted records
+   */
+  @SqlQuery("""
+      with recursive staged as (
+      	select s.*, h.latest_timestamp, coalesce(h.is_current, false) as db_current,
+      		row_number() over (partition by s.station_id, s.measurement_point_number, s.examination_type_sc,
+      			s.measurement_date_time order by s.seq) as rn
+      	from (
+      		select *
+      		from measurement_staging ms
+      		where not (:checkDuplicates and exists (
+      			select 1
+      			from vanda.measurement d
+      			where
+      				d.source_topic = :sourceTopic
+      				and d.source_partition = ms.source_partition
+      				and d.source_offset = ms.source_offset))
+      	) s
+      	left join (
+      		select
+      			m.station_id,
+      			m.measurement_point_number,
+      			m.examination_type_sc,
+      			m.measurement_date_time,
+      			max(coalesce(m.vanda_event_timestamp, m.created)) as latest_timestamp,
+      			bool_or(m.is_current) as is_current
+      		from vanda.measurement m
+      		join (select distinct station_id, measurement_point_number, examination_type_sc, measurement_date_time
+      			from measurement_staging) k
+      			on m.station_id = k.station_id
+      			and m.measurement_point_number = k.measurement_point_number
+      			and m.examination_type_sc = k.examination_type_sc
+      			and m.measurement_date_time = k.measurement_date_time
+      		group by m.station_id, m.measurement_point_number, m.examination_type_sc, m.measurement_date_time
+      	) h
+      		on s.station_id = h.station_id
+      		and s.measurement_point_number = h.measurement_point_number
+      		and s.examination_type_sc = h.examination_type_sc
+      		and s.measurement_date_time = h.measurement_date_time
+      ),
+      checked as (
+      	select station_id, measurement_point_number, examination_type_sc, measurement_date_time,
+      		cast(0 as bigint) as rn, cast(null as bigint) as seq, false as accepted,
+      		latest_timestamp as latest, db_current as current
+      	from staged
+      	where rn = 1
+      	union all
+      	select s.station_id, s.measurement_point_number, s.examination_type_sc, s.measurement_date_time, s.rn, s.seq,
+      		a.accepted,
+      		greatest(c.latest, case when a.accepted then s.vanda_event_timestamp end),
+      		case when a.accepted then s.event_type <> 2 else c.current end
+      	from checked c
+      	join staged s
+      		on s.station_id = c.station_id
+      		and s.measurement_point_number = c.measurement_point_number
+      		and s.examination_type_sc = c.examination_type_sc
+      		and s.measurement_date_time = c.measurement_date_time
+      		and s.rn = c.rn + 1
+      	cross join lateral (
+      		select case when s.event_type = 2
+      			then c.current
+      			else s.vanda_event_timestamp is null or c.latest is null or s.vanda_event_timestamp > c.latest
+      		end as accepted
+      	) a
+      ),
+      accepted as (
+      	select s.*,
+      		row_number() over (partition by s.station_id, s.measurement_point_number, s.examination_type_sc,
+      			s.measurement_date_time order by s.seq desc) = 1 as is_last
+      	from staged s
+      	join checked c on c.seq = s.seq
+      	where c.accepted
+      ),
+      inactivated as (
+      	update vanda.measurement m set is_current = false
+      	from (select distinct station_id, measurement_point_number, examination_type_sc, measurement_date_time
+      		from accepted where db_current) a
+      	where
+      		m.station_id = a.station_id
+      		and m.measurement_point_number = a.measurement_point_number
+      		and m.examination_type_sc = a.examination_type_sc
+      		and m.measurement_date_time = a.measurement_date_time
+      		and m.is_current = true
+      	returning 1
+      ),
+      inserted as (
+      	insert into vanda.measurement (station_id, measurement_date_time, vanda_event_timestamp, measurement_point_number, examination_type_sc, value, value_elevation_corrected, is_current, created, source_topic, source_partition, source_offset)
+      	select station_id, measurement_date_time, vanda_event_timestamp, measurement_point_number, examination_type_sc, value, value_elevation_corrected, event_type <> 2 and is_last, clock_timestamp(), cast(:sourceTopic as text), source_partition, source_offset
+      	from accepted
+      	order by seq
+      	returning 1
+      )
+      select
+      	(select count(*) from measurement_staging) as staged,
+      	(select count(*) from measurement_staging) - (select count(*) from staged) as duplicates,
+      	(select count(*) from inactivated) as inactivated,
+      	(select count(*) from inserted) as inserted
+      """)
+  @RegisterRowMapper(BulkLoadResultMapper.class)
+  BulkLoadResult applyStagedMeasurements(@Bind boolean checkDuplicates, @Bind String sourceTopic);
+
+  /**
+   * Add a new record for each of the given measurements.
+   * The creation time is the clock time so the records keep their order within a transaction.
+   *
+   * @param measurements
+   */
+  @SqlBatch("""
+      insert into vanda.measurement (station_id, measurement_date_time, vanda_event_timestamp, measurement_point_number, examination_type_sc, value, value_elevation_corrected, is_current, created, source_topic, source_partition, source_offset)
+      values (:stationId, :measurementDateTime, :vandaEventTimestamp, :measurementPointNumber, :examinationTypeSc, :value, :valueElevationCorrected, :isCurrent, clock_timestamp(), :sourceTopic, :sourcePartition, :sourceOffset)
+      """)
+  void insertMeasurements(@BindBean List<Measurement> measurements);
 
   /**
    * Set is_current to false on all records from the given measurement
@@ -116,6 +509,23 @@ public interface MeasurementDao {
       """)
   int inactivateMeasurementHistory(@BindBean Measurement measurement);
 
+  /**
+   * Set is_current to false on all records from the given measurements
+   *
+   * @param measurements
+   * @return number of deactivated records per measurement
+   */
+  @SqlBatch("""
+      update vanda.measurement set is_current = false
+      where
+      	station_id = :stationId
+      	and measurement_date_time = :measurementDateTime
+      	and measurement_point_number = :measurementPointNumber
+      	and examination_type_sc = :examinationTypeSc
+      	and is_current = true
+      """)
+  int[] inactivateMeasurementHistories(@BindBean List<Measurement> measurements);
+
   /**
    * Deletes all measurements related to the given station
    *
@@ -0,0 +1,23 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper;
+
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.BulkLoadResult;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import org.jdbi.v3.core.mapper.RowMapper;
+import org.jdbi.v3.core.statement.StatementContext;
+
+public class BulkLoadResultMapper implements RowMapper<BulkLoadResult> {
+
+  @Override
+  public BulkLoadResult map(ResultSet rs, StatementContext ctx) throws SQLException {
+
+    BulkLoadResult result = new BulkLoadResult();
+
+    result.setStaged(rs.getInt("staged"));
+    result.setDuplicates(rs.getInt("duplicates"));
+    result.setInactivated(rs.getInt("inactivated"));
+    result.setInserted(rs.getInt("inserted"));
+
+    return result;
+  }
+}
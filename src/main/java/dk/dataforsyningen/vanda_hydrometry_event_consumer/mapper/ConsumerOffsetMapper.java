@@ -0,0 +1,20 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper;
+
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.ConsumerOffset;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import org.jdbi.v3.core.mapper.RowMapper;
+import org.jdbi.v3.core.statement.StatementContext;
+
+public class ConsumerOffsetMapper implements RowMapper<ConsumerOffset> {
+
+  @Override
+  public ConsumerOffset map(ResultSet rs, StatementContext ctx) throws SQLException {
+
+    return new ConsumerOffset(
+        rs.getString("consumer_group"),
+        rs.getString("topic"),
+        rs.getInt("partition"),
+        rs.getLong("next_offset"));
+  }
+}
@@ -14,6 +14,8 @@ public class EventMeasurementMapper {
     measurement.setVandaEventTimestamp(event.getRecordDateTime());
     measurement.setMeasurementDateTime(event.getMeasurementDateTime());
     measurement.setExaminationTypeSc(event.getExaminationTypeSc());
+    measurement.setSourcePartition(event.getPartition());
+    measurement.setSourceOffset(event.getOffset());
 
     return measurement;
   }
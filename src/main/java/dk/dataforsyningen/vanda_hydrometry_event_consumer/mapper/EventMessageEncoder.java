@@ -0,0 +1,63 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Writes an event back as an event message (JSON with the fields of the event hub messages),
+ * so it can be decoded again by EventModelDeserializer. Used to keep the events failing to be saved
+ * in the dead-letter store, since the decoded records do not keep their raw message.
+ */
+public class EventMessageEncoder {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private EventMessageEncoder() {
+  }
+
+  /**
+   * @param event
+   * @return the event message (UTF-8)
+   */
+  public static byte[] encode(EventModel event) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+    try (JsonGenerator json = JSON_FACTORY.createGenerator(out)) {
+      json.writeStartObject();
+      writeString(json, "EventType", event.getEventType());
+      writeString(json, "StationId", event.getStationId());
+      writeString(json, "OperatorStationId", event.getOperatorStationId());
+      writeNumber(json, "MeasurementPointNumber", event.getMeasurementPointNumber());
+      writeNumber(json, "UnitSc", event.getUnitSc());
+      writeNumber(json, "ParameterSc", event.getParameterSc());
+      writeNumber(json, "ExaminationTypeSc", event.getExaminationTypeSc());
+      writeNumber(json, "ReasonCodeSc", event.getReasonCodeSc());
+      if (event.getResult() != null) {
+        json.writeNumberField("Result", event.getResult());
+      }
+      if (event.getMeasurementDateTime() != null) {
+        json.writeStringField("MeasurementDateTime", event.getMeasurementDateTime().toString());
+      }
+      writeString(json, "LoggerId", event.getLoggerId());
+      json.writeEndObject();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+
+  private static void writeString(JsonGenerator json, String name, String value) throws IOException {
+    if (value != null) {
+      json.writeStringField(name, value);
+    }
+  }
+
+  private static void writeNumber(JsonGenerator json, String name, Integer value) throws IOException {
+    if (value != null) {
+      json.writeNumberField(name, value);
+    }
+  }
+}
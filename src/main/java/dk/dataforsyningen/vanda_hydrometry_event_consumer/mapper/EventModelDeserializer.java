@@ -0,0 +1,165 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectReader;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.EventFilter;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.EventFilterHolder;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.VandaHEventConsumerConfig;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Kafka deserializer decoding the event message bytes directly into EventModel
+ * (without decoding them into a string first).
+ * <p>
+ * The raw message is decoded into a string only to be displayed (--displayAll)
+ * or logged when the message cannot be decoded. In this case null is returned and, if the record's
+ * headers are given, the error and the raw message are added to them (DECODE_ERROR_HEADER and RAW_VALUE_HEADER),
+ * so the listener can keep the message in the dead-letter store.
+ * <p>
+ * Before decoding the whole message only the event type and the examination type are read
+ * with the streaming parser. If the event will not be processed (see EventFilter) null is returned without decoding the rest of the message.
+ * These events are counted as rejected.
+ * <p>
+ * The partition, offset and record timestamp are not known here and are set by the listener.
+ */
+public class EventModelDeserializer implements Deserializer<EventModel> {
+
+  public static final String DECODE_ERROR_HEADER = "vandaDecodeError";
+
+  public static final String RAW_VALUE_HEADER = "vandaRawValue";
+
+  private final Logger logger = LoggerFactory.getLogger(EventModelDeserializer.class);
+
+  private final ObjectReader eventReader;
+
+  private final JsonFactory jsonFactory;
+
+  private final VandaHEventConsumerConfig config;
+
+  private final EventFilterHolder eventFilter;
+
+  private final LongAdder rejectedCounter = new LongAdder();
+
+  public EventModelDeserializer(ObjectReader eventReader, VandaHEventConsumerConfig config,
+                                EventFilterHolder eventFilter) {
+    this.eventReader = eventReader;
+    this.jsonFactory = eventReader.getFactory();
+    this.config = config;
+    this.eventFilter = eventFilter;
+  }
+
+  /**
+   * @return number of events rejected by the pre-scan since the start (see ConsumerMetrics)
+   */
+  public long getRejectedCount() {
+    return rejectedCounter.sum();
+  }
+
+  @Override
+  public EventModel deserialize(String topic, byte[] data) {
+    if (data == null) {
+      return null;
+    }
+    return deserialize(topic, data, 0, data.length);
+  }
+
+  @Override
+  public EventModel deserialize(String topic, Headers headers, ByteBuffer data) {
+    if (data == null) {
+      return null;
+    }
+    if (!data.hasArray()) {
+      byte[] bytes = new byte[data.remaining()];
+      data.duplicate().get(bytes);
+      return deserialize(topic, headers, bytes, 0, bytes.length);
+    }
+    return deserialize(topic, headers, data.array(), data.arrayOffset() + data.position(), data.remaining());
+  }
+
+  private EventModel deserialize(String topic, byte[] data, int offset, int length) {
+    return deserialize(topic, null, data, offset, length);
+  }
+
+  private EventModel deserialize(String topic, Headers headers, byte[] data, int offset, int length) {
+    if (config.isDisplayAll()) {
+      System.out.println("Raw Message -> Topic: " + topic + ", Value: " +
+          new String(data, offset, length, StandardCharsets.UTF_8));
+    }
+
+    if (!preScan(data, offset, length)) {
+      rejectedCounter.increment();
+      return null;
+    }
+
+    try {
+      return eventReader.readValue(data, offset, length);
+    } catch (IOException | RuntimeException e) {
+      logger.error("Error decoding message: {} -> Topic: {}, Value: {}", e.getMessage(), topic,
+          new String(data, offset, length, StandardCharsets.UTF_8));
+      if (headers != null) {
+        headers.add(DECODE_ERROR_HEADER, e.getClass().getName().getBytes(StandardCharsets.UTF_8));
+        headers.add(RAW_VALUE_HEADER, Arrays.copyOfRange(data, offset, offset + length));
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Reads the top level fields EventType and ExaminationTypeSc of the message, skipping the other
+   * fields, and stops as soon as both are read.
+   *
+   * @param data
+   * @param offset
+   * @param length
+   * @return false if the event is not to be processed, true otherwise (also when it cannot be decided here)
+   */
+  private boolean preScan(byte[] data, int offset, int length) {
+    EventFilter filter = eventFilter.get();
+    try (JsonParser parser = jsonFactory.createParser(data, offset, length)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return true;
+      }
+
+      boolean eventTypeRead = false;
+      boolean examinationTypeRead = false;
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.currentName();
+        JsonToken token = parser.nextToken();
+
+        if ("EventType".equals(name)) {
+          if (token == JsonToken.VALUE_STRING && !filter.acceptEventType(EventFilter.EventType.of(
+              parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength()))) {
+            return false;
+          }
+          eventTypeRead = true;
+        } else if ("ExaminationTypeSc".equals(name)) {
+          if (token == JsonToken.VALUE_NUMBER_INT &&
+              !filter.acceptExaminationType(parser.getIntValue())) {
+            return false;
+          }
+          examinationTypeRead = true;
+        } else {
+          parser.skipChildren();
+        }
+
+        if (eventTypeRead && examinationTypeRead) {
+          return true;
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      //the full decoding reports the error
+    }
+    return true;
+  }
+}
@@ -0,0 +1,127 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper;
+
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.service.VandaHEventProcessor;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.List;
+
+/**
+ * Writes events as rows of the measurement staging table in the binary format of the Postgres COPY command
+ * (see MeasurementDao.createStagingTable for the columns, in the same order).
+ */
+public class MeasurementCopyEncoder {
+
+  public static final short EVENT_ADDED = 0;
+  public static final short EVENT_UPDATED = 1;
+  public static final short EVENT_DELETED = 2;
+
+  private static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0};
+
+  private static final short FIELD_COUNT = 11;
+
+  // the Postgres timestamps are microseconds since 2000-01-01T00:00:00Z
+  private static final long POSTGRES_EPOCH_SECOND = 946_684_800L;
+
+  private MeasurementCopyEncoder() {
+  }
+
+  /**
+   * Writes the events, in the given order, with header and trailer
+   *
+   * @param events add, update or delete events
+   * @param out    the COPY input
+   * @throws IOException
+   */
+  public static void encode(List<EventModel> events, OutputStream out) throws IOException {
+    DataOutputStream data = new DataOutputStream(out);
+
+    data.write(SIGNATURE);
+    data.writeInt(0);  //flags
+    data.writeInt(0);  //header extension length
+
+    long seq = 0;
+    for (EventModel event : events) {
+      data.writeShort(FIELD_COUNT);
+      writeLong(data, seq++);
+      writeShort(data, eventTypeOf(event));
+      writeText(data, event.getStationId());
+      writeInt(data, event.getMeasurementPointNumber());
+      writeInt(data, event.getExaminationTypeSc());
+      writeTimestamp(data, event.getMeasurementDateTime());
+      writeTimestamp(data, event.getRecordDateTime());
+      writeDouble(data, event.getResult());
+      writeDouble(data, null);  //value elevation corrected is not in the events
+      writeInt(data, event.getPartition());
+      writeLong(data, event.getOffset());
+    }
+
+    data.writeShort(-1);  //trailer
+    data.flush();
+  }
+
+  private static short eventTypeOf(EventModel event) {
+    if (VandaHEventProcessor.EVENT_MEASUREMENT_ADDED.equals(event.getEventType())) {
+      return EVENT_ADDED;
+    } else if (VandaHEventProcessor.EVENT_MEASUREMENT_UPDATED.equals(event.getEventType())) {
+      return EVENT_UPDATED;
+    } else if (VandaHEventProcessor.EVENT_MEASUREMENT_DELETED.equals(event.getEventType())) {
+      return EVENT_DELETED;
+    }
+    throw new IllegalArgumentException("Unknown event type: " + event.getEventType());
+  }
+
+  private static void writeNull(DataOutputStream data) throws IOException {
+    data.writeInt(-1);
+  }
+
+  private static void writeShort(DataOutputStream data, short value) throws IOException {
+    data.writeInt(2);
+    data.writeShort(value);
+  }
+
+  private static void writeInt(DataOutputStream data, Integer value) throws IOException {
+    if (value == null) {
+      writeNull(data);
+      return;
+    }
+    data.writeInt(4);
+    data.writeInt(value);
+  }
+
+  private static void writeLong(DataOutputStream data, long value) throws IOException {
+    data.writeInt(8);
+    data.writeLong(value);
+  }
+
+  private static void writeDouble(DataOutputStream data, Double value) throws IOException {
+    if (value == null) {
+      writeNull(data);
+      return;
+    }
+    data.writeInt(8);
+    data.writeDouble(value);
+  }
+
+  private static void writeText(DataOutputStream data, String value) throws IOException {
+    if (value == null) {
+      writeNull(data);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    data.writeInt(bytes.length);
+    data.write(bytes);
+  }
+
+  private static void writeTimestamp(DataOutputStream data, OffsetDateTime value) throws IOException {
+    if (value == null) {
+      writeNull(data);
+      return;
+    }
+    data.writeInt(8);
+    data.writeLong((value.toEpochSecond() - POSTGRES_EPOCH_SECOND) * 1_000_000L + value.getNano() / 1_000);
+  }
+}
@@ -23,6 +23,9 @@ public class MeasurementMapper implements RowMapper<Measurement> {
     m.setVandaEventTimestamp(rs.getObject("vanda_event_timestamp", OffsetDateTime.class));
     m.setExaminationTypeSc(rs.getObject("examination_type_sc", Integer.class));
     m.setMeasurementPointNumber(rs.getInt("measurement_point_number"));
+    m.setSourceTopic(rs.getString("source_topic"));
+    m.setSourcePartition(rs.getObject("source_partition", Integer.class));
+    m.setSourceOffset(rs.getObject("source_offset", Long.class));
 
     return m;
   }
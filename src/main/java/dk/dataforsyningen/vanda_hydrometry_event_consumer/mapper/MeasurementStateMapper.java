@@ -0,0 +1,26 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper;
+
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementState;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.OffsetDateTime;
+import org.jdbi.v3.core.mapper.RowMapper;
+import org.jdbi.v3.core.statement.StatementContext;
+
+public class MeasurementStateMapper implements RowMapper<MeasurementState> {
+
+  @Override
+  public MeasurementState map(ResultSet rs, StatementContext ctx) throws SQLException {
+
+    MeasurementState state = new MeasurementState();
+
+    state.setStationId(rs.getString("station_id"));
+    state.setMeasurementPointNumber(rs.getInt("measurement_point_number"));
+    state.setExaminationTypeSc(rs.getInt("examination_type_sc"));
+    state.setMeasurementDateTime(rs.getObject("measurement_date_time", OffsetDateTime.class));
+    state.setLatestTimestamp(rs.getObject("latest_timestamp", OffsetDateTime.class));
+    state.setIsCurrent(rs.getBoolean("is_current"));
+
+    return state;
+  }
+}
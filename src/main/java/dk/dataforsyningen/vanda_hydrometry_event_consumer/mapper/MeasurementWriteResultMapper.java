@@ -0,0 +1,23 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper;
+
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementWriteResult;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import org.jdbi.v3.core.mapper.RowMapper;
+import org.jdbi.v3.core.statement.StatementContext;
+
+public class MeasurementWriteResultMapper implements RowMapper<MeasurementWriteResult> {
+
+  @Override
+  public MeasurementWriteResult map(ResultSet rs, StatementContext ctx) throws SQLException {
+
+    MeasurementWriteResult result = new MeasurementWriteResult();
+
+    result.setDuplicate(rs.getBoolean("duplicate"));
+    result.setDelayed(rs.getBoolean("delayed"));
+    result.setInactivated(rs.getInt("inactivated"));
+    result.setInserted(rs.getInt("inserted"));
+
+    return result;
+  }
+}
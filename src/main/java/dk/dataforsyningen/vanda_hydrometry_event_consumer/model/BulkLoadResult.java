@@ -0,0 +1,73 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.model;
+
+/**
+ * Outcome of bulk loading a batch of events into the measurements' history.
+ */
+public class BulkLoadResult {
+
+  int staged = 0;
+
+  int duplicates = 0;
+
+  int inactivated = 0;
+
+  int inserted = 0;
+
+
+  /**
+   * @return number of events copied into the staging table
+   */
+  public int getStaged() {
+    return staged;
+  }
+
+  public void setStaged(int staged) {
+    this.staged = staged;
+  }
+
+  /**
+   * @return number of events already written, i.e. redelivered events that were skipped
+   */
+  public int getDuplicates() {
+    return duplicates;
+  }
+
+  public void setDuplicates(int duplicates) {
+    this.duplicates = duplicates;
+  }
+
+  /**
+   * @return number of superseded records, i.e. active records that were deactivated
+   */
+  public int getInactivated() {
+    return inactivated;
+  }
+
+  public void setInactivated(int inactivated) {
+    this.inactivated = inactivated;
+  }
+
+  public int getInserted() {
+    return inserted;
+  }
+
+  public void setInserted(int inserted) {
+    this.inserted = inserted;
+  }
+
+  /**
+   * @return number of events dropped, i.e. delayed events and deletions of nonexistent measurements
+   */
+  public int getDropped() {
+    return staged - duplicates - inserted;
+  }
+
+  @Override
+  public String toString() {
+    return "BulkLoadResult [staged=" + staged
+        + ", duplicates=" + duplicates
+        + ", inactivated=" + inactivated
+        + ", inserted=" + inserted
+        + "]";
+  }
+}
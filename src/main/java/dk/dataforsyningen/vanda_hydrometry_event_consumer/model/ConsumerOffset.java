@@ -0,0 +1,68 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.model;
+
+/**
+ * The position of the consumer group in a partition of the topic, as stored in the DB:
+ * the offset of the next event to process.
+ */
+public class ConsumerOffset {
+
+  String consumerGroup;
+
+  String topic;
+
+  int partition;
+
+  long nextOffset;
+
+
+  public ConsumerOffset() {
+  }
+
+  public ConsumerOffset(String consumerGroup, String topic, int partition, long nextOffset) {
+    this.consumerGroup = consumerGroup;
+    this.topic = topic;
+    this.partition = partition;
+    this.nextOffset = nextOffset;
+  }
+
+  public String getConsumerGroup() {
+    return consumerGroup;
+  }
+
+  public void setConsumerGroup(String consumerGroup) {
+    this.consumerGroup = consumerGroup;
+  }
+
+  public String getTopic() {
+    return topic;
+  }
+
+  public void setTopic(String topic) {
+    this.topic = topic;
+  }
+
+  public int getPartition() {
+    return partition;
+  }
+
+  public void setPartition(int partition) {
+    this.partition = partition;
+  }
+
+  public long getNextOffset() {
+    return nextOffset;
+  }
+
+  public void setNextOffset(long nextOffset) {
+    this.nextOffset = nextOffset;
+  }
+
+  @Override
+  public String toString() {
+    return "ConsumerOffset [consumerGroup=" + consumerGroup
+        + ", topic=" + topic
+        + ", partition=" + partition
+        + ", nextOffset=" + nextOffset
+        + "]";
+  }
+}
@@ -0,0 +1,92 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.model;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An event message that could not be decoded or saved, as kept in the dead-letter store:
+ * its position in the event hub, the error and the raw message.
+ */
+public class DeadLetter {
+
+  long deadLetterTimestamp;
+
+  String topic;
+
+  int partition;
+
+  long offset;
+
+  long timestamp;
+
+  String errorClass;
+
+  String errorMessage;
+
+  byte[] value;
+
+
+  public DeadLetter(long deadLetterTimestamp, String topic, int partition, long offset, long timestamp,
+                    String errorClass, String errorMessage, byte[] value) {
+    this.deadLetterTimestamp = deadLetterTimestamp;
+    this.topic = topic;
+    this.partition = partition;
+    this.offset = offset;
+    this.timestamp = timestamp;
+    this.errorClass = errorClass;
+    this.errorMessage = errorMessage;
+    this.value = value;
+  }
+
+  /**
+   * @return time the message was added to the dead-letter store (ms since epoch)
+   */
+  public long getDeadLetterTimestamp() {
+    return deadLetterTimestamp;
+  }
+
+  public String getTopic() {
+    return topic;
+  }
+
+  public int getPartition() {
+    return partition;
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  /**
+   * @return timestamp of the event hub record (ms since epoch)
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public String getErrorClass() {
+    return errorClass;
+  }
+
+  public String getErrorMessage() {
+    return errorMessage;
+  }
+
+  /**
+   * @return the raw message or null if the record had no value
+   */
+  public byte[] getValue() {
+    return value;
+  }
+
+  @Override
+  public String toString() {
+    return "DeadLetter [topic=" + topic
+        + ", partition=" + partition
+        + ", offset=" + offset
+        + ", timestamp=" + timestamp
+        + ", errorClass=" + errorClass
+        + ", errorMessage=" + errorMessage
+        + ", value=" + (value != null ? new String(value, StandardCharsets.UTF_8) : null)
+        + "]";
+  }
+}
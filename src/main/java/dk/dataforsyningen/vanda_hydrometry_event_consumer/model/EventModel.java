@@ -212,6 +212,14 @@ public class EventModel {
         && Objects.equals(operatorStationId, other.operatorStationId);
   }
 
+  /**
+   * @return true if the measurement point number, examination type and measurement date time
+   * (needed for the MeasurementKey) are set
+   */
+  public boolean hasMeasurementKey() {
+    return measurementPointNumber != null && examinationTypeSc != null && measurementDateTime != null;
+  }
+
   @Override
   public String toString() {
     return "EventModel [eventType=" + eventType + ", stationId=" + stationId +
@@ -25,6 +25,12 @@ public class Measurement {
 
   Integer examinationTypeSc = null; //FK
 
+  String sourceTopic = null; //event hub (or its configured generation), partition and offset of the event, if written from an event
+
+  Integer sourcePartition = null;
+
+  Long sourceOffset = null;
+
 
   public Integer getMeasurementPointNumber() {
     return measurementPointNumber;
@@ -107,6 +113,30 @@ public class Measurement {
     this.examinationTypeSc = examinationTypeSc;
   }
 
+  public String getSourceTopic() {
+    return sourceTopic;
+  }
+
+  public void setSourceTopic(String sourceTopic) {
+    this.sourceTopic = sourceTopic;
+  }
+
+  public Integer getSourcePartition() {
+    return sourcePartition;
+  }
+
+  public void setSourcePartition(Integer sourcePartition) {
+    this.sourcePartition = sourcePartition;
+  }
+
+  public Long getSourceOffset() {
+    return sourceOffset;
+  }
+
+  public void setSourceOffset(Long sourceOffset) {
+    this.sourceOffset = sourceOffset;
+  }
+
   @Override
   public String toString() {
     return "Measurement [measurementPointNumber=" + measurementPointNumber
@@ -119,6 +149,9 @@ public class Measurement {
         + ", isCurrent=" + isCurrent
         + ", stationId=" + stationId
         + ", examinationTypeSc=" + examinationTypeSc
+        + ", sourceTopic=" + sourceTopic
+        + ", sourcePartition=" + sourcePartition
+        + ", sourceOffset=" + sourceOffset
         + "]";
   }
 
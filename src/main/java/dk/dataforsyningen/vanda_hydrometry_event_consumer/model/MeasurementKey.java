@@ -0,0 +1,137 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.model;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Identifies a measurement, i.e. all the records in the history of one measurement.
+ * <p>
+ * The key is packed into primitives so that creating, hashing and comparing it allocates nothing
+ * but the key itself: the station id is replaced by its index in a table of the station ids seen
+ * so far (interned for the lifetime of the application, there are only a few thousand stations)
+ * and packed together with the measurement point number into one long, and the measurement date time
+ * is stored as microseconds since the epoch (the precision of the DB timestamps).
+ */
+public final class MeasurementKey {
+
+  //station id -> index, and index -> station id
+  private static final ConcurrentHashMap<String, Integer> stationIndexes = new ConcurrentHashMap<>();
+  private static final ArrayList<String> stationIds = new ArrayList<>();
+
+  private static final int NO_STATION = -1;
+
+  private final long stationAndPoint;  //station index in the high 32 bits, point number in the low 32 bits
+
+  private final int examinationTypeSc;
+
+  private final long measurementDateTime;  //microseconds since the epoch
+
+  private MeasurementKey(int stationIndex, int measurementPointNumber, int examinationTypeSc,
+                         long epochSecond, int nano) {
+    this.stationAndPoint = ((long) stationIndex << 32) | (measurementPointNumber & 0xFFFFFFFFL);
+    this.examinationTypeSc = examinationTypeSc;
+    this.measurementDateTime = epochSecond * 1_000_000L + nano / 1_000;  //nano is never negative
+  }
+
+  public MeasurementKey(String stationId, int measurementPointNumber, int examinationTypeSc,
+                        Instant measurementDateTime) {
+    this(stationIndex(stationId), measurementPointNumber, examinationTypeSc,
+        measurementDateTime.getEpochSecond(), measurementDateTime.getNano());
+  }
+
+  public MeasurementKey(String stationId, int measurementPointNumber, int examinationTypeSc,
+                        OffsetDateTime measurementDateTime) {
+    this(stationIndex(stationId), measurementPointNumber, examinationTypeSc,
+        measurementDateTime.toEpochSecond(), measurementDateTime.getNano());
+  }
+
+  public static MeasurementKey of(EventModel event) {
+    return new MeasurementKey(event.getStationId(), event.getMeasurementPointNumber(),
+        event.getExaminationTypeSc(), event.getMeasurementDateTime());
+  }
+
+  public static MeasurementKey of(Measurement measurement) {
+    return new MeasurementKey(measurement.getStationId(), measurement.getMeasurementPointNumber(),
+        measurement.getExaminationTypeSc(), measurement.getMeasurementDateTime());
+  }
+
+  /**
+   * Returns the index of the station id, adding it to the table if new
+   *
+   * @param stationId
+   * @return station index
+   */
+  static int stationIndex(String stationId) {
+    if (stationId == null) {
+      return NO_STATION;
+    }
+    Integer index = stationIndexes.get(stationId);
+    if (index != null) {
+      return index;
+    }
+    synchronized (stationIds) {
+      index = stationIndexes.get(stationId);
+      if (index == null) {
+        index = stationIds.size();
+        stationIds.add(stationId);
+        stationIndexes.put(stationId, index);
+      }
+      return index;
+    }
+  }
+
+  public String getStationId() {
+    int index = (int) (stationAndPoint >> 32);
+    if (index == NO_STATION) {
+      return null;
+    }
+    synchronized (stationIds) {
+      return stationIds.get(index);
+    }
+  }
+
+  public int getMeasurementPointNumber() {
+    return (int) stationAndPoint;
+  }
+
+  public int getExaminationTypeSc() {
+    return examinationTypeSc;
+  }
+
+  public Instant getMeasurementDateTime() {
+    return Instant.ofEpochSecond(Math.floorDiv(measurementDateTime, 1_000_000L),
+        Math.floorMod(measurementDateTime, 1_000_000L) * 1_000L);
+  }
+
+  @Override
+  public String toString() {
+    return "MeasurementKey [stationId=" + getStationId()
+        + ", measurementPointNumber=" + getMeasurementPointNumber()
+        + ", examinationTypeSc=" + examinationTypeSc
+        + ", measurementDateTime=" + getMeasurementDateTime()
+        + "]";
+  }
+
+  @Override
+  public int hashCode() {
+    long h = stationAndPoint * 0x9E3779B97F4A7C15L;
+    h = (h ^ examinationTypeSc) * 0x9E3779B97F4A7C15L;
+    h = (h ^ measurementDateTime) * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof MeasurementKey other)) {
+      return false;
+    }
+    return stationAndPoint == other.stationAndPoint
+        && examinationTypeSc == other.examinationTypeSc
+        && measurementDateTime == other.measurementDateTime;
+  }
+}
@@ -0,0 +1,123 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.model;
+
+import java.time.OffsetDateTime;
+
+/**
+ * Summary of a measurement's history: the latest registered timestamp
+ * (event timestamp or creation date for API data) and whether the history
+ * has a current (active) record.
+ */
+public class MeasurementState {
+
+  String stationId = null;
+
+  Integer measurementPointNumber = null;
+
+  Integer examinationTypeSc = null;
+
+  OffsetDateTime measurementDateTime = null;
+
+  OffsetDateTime latestTimestamp = null;
+
+  boolean isCurrent = false;
+
+  public MeasurementState() {
+  }
+
+  public MeasurementState(MeasurementState state) {
+    this.stationId = state.stationId;
+    this.measurementPointNumber = state.measurementPointNumber;
+    this.examinationTypeSc = state.examinationTypeSc;
+    this.measurementDateTime = state.measurementDateTime;
+    this.latestTimestamp = state.latestTimestamp;
+    this.isCurrent = state.isCurrent;
+  }
+
+  public String getStationId() {
+    return stationId;
+  }
+
+  public void setStationId(String stationId) {
+    this.stationId = stationId;
+  }
+
+  public Integer getMeasurementPointNumber() {
+    return measurementPointNumber;
+  }
+
+  public void setMeasurementPointNumber(Integer measurementPointNumber) {
+    this.measurementPointNumber = measurementPointNumber;
+  }
+
+  public Integer getExaminationTypeSc() {
+    return examinationTypeSc;
+  }
+
+  public void setExaminationTypeSc(Integer examinationTypeSc) {
+    this.examinationTypeSc = examinationTypeSc;
+  }
+
+  public OffsetDateTime getMeasurementDateTime() {
+    return measurementDateTime;
+  }
+
+  public void setMeasurementDateTime(OffsetDateTime measurementDateTime) {
+    this.measurementDateTime = measurementDateTime;
+  }
+
+  public OffsetDateTime getLatestTimestamp() {
+    return latestTimestamp;
+  }
+
+  public void setLatestTimestamp(OffsetDateTime latestTimestamp) {
+    this.latestTimestamp = latestTimestamp;
+  }
+
+  public boolean getIsCurrent() {
+    return isCurrent;
+  }
+
+  public void setIsCurrent(boolean isCurrent) {
+    this.isCurrent = isCurrent;
+  }
+
+  public MeasurementKey getKey() {
+    return new MeasurementKey(stationId, measurementPointNumber, examinationTypeSc,
+        measurementDateTime);
+  }
+
+  /**
+   * An event is delayed if the history already has a record with the same or a later timestamp.
+   *
+   * @param eventTimestamp
+   * @return true if delayed
+   */
+  public boolean isDelayed(OffsetDateTime eventTimestamp) {
+    return latestTimestamp != null && eventTimestamp != null
+        && !latestTimestamp.isBefore(eventTimestamp);
+  }
+
+  /**
+   * Registers a new record in the history
+   *
+   * @param timestamp the record's timestamp
+   * @param current   whether the record is the current one
+   */
+  public void register(OffsetDateTime timestamp, boolean current) {
+    if (timestamp != null && (latestTimestamp == null || timestamp.isAfter(latestTimestamp))) {
+      latestTimestamp = timestamp;
+    }
+    isCurrent = current;
+  }
+
+  @Override
+  public String toString() {
+    return "MeasurementState [stationId=" + stationId
+        + ", measurementPointNumber=" + measurementPointNumber
+        + ", examinationTypeSc=" + examinationTypeSc
+        + ", measurementDateTime=" + measurementDateTime
+        + ", latestTimestamp=" + latestTimestamp
+        + ", isCurrent=" + isCurrent
+        + "]";
+  }
+}
@@ -0,0 +1,63 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.model;
+
+/**
+ * Outcome of writing a measurement event as a new record in the measurement's history.
+ */
+public class MeasurementWriteResult {
+
+  boolean duplicate = false;
+
+  boolean delayed = false;
+
+  int inactivated = 0;
+
+  int inserted = 0;
+
+
+  /**
+   * @return true if a record was already written from the same event, so nothing was written
+   */
+  public boolean isDuplicate() {
+    return duplicate;
+  }
+
+  public void setDuplicate(boolean duplicate) {
+    this.duplicate = duplicate;
+  }
+
+  public boolean isDelayed() {
+    return delayed;
+  }
+
+  public void setDelayed(boolean delayed) {
+    this.delayed = delayed;
+  }
+
+  /**
+   * @return number of superseded records, i.e. active records that were deactivated
+   */
+  public int getInactivated() {
+    return inactivated;
+  }
+
+  public void setInactivated(int inactivated) {
+    this.inactivated = inactivated;
+  }
+
+  public int getInserted() {
+    return inserted;
+  }
+
+  public void setInserted(int inserted) {
+    this.inserted = inserted;
+  }
+
+  @Override
+  public String toString() {
+    return "MeasurementWriteResult [duplicate=" + duplicate
+        + ", delayed=" + delayed
+        + ", inactivated=" + inactivated
+        + ", inserted=" + inserted
+        + "]";
+  }
+}
@@ -0,0 +1,15 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.model;
+
+/**
+ * The position of an event in the event hub (partition and offset),
+ * stored with the measurement record written from the event.
+ *
+ * @param sourcePartition
+ * @param sourceOffset
+ */
+public record SourcePosition(int sourcePartition, long sourceOffset) {
+
+  public static SourcePosition of(EventModel event) {
+    return new SourcePosition(event.getPartition(), event.getOffset());
+  }
+}
@@ -0,0 +1,327 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.service;
+
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper.EventModelDeserializer;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.stereotype.Component;
+
+/**
+ * The consumer's meters (Micrometer), exposed by the Prometheus scrape endpoint (see MetricsServer)
+ * and read by the periodic report:
+ * <ul>
+ * <li>vanda.events.received, vanda.events.filtered, vanda.events.processed: decoded, not accepted
+ * (by the event filter) and saved events, tagged with the event type ("other" for unknown types)</li>
+ * <li>vanda.events.rejected: events rejected by the pre-scan before decoding (see EventModelDeserializer)</li>
+ * <li>vanda.events.coalesced, vanda.events.duplicates: events coalesced or skipped as already written</li>
+ * <li>vanda.event.age: time from the event hub record timestamp until the event is saved (committed),
+ * by partition</li>
+ * <li>vanda.event.delay: time from the measurement time until the event hub record timestamp, by partition</li>
+ * <li>vanda.partition.lag: events between the last received event and the end of the partition</li>
+ * <li>vanda.state_cache.gets: lookups in the measurement state cache, tagged with the result (hit or miss)</li>
+ * <li>vanda.write_queue.size, vanda.write_queue.pauses: events in the write queue and times the listener
+ * was paused by it (see EventWriteQueue)</li>
+ * </ul>
+ * The DB statements are timed by SqlStatementMetrics and the connection pool is measured by HikariCP
+ * (see DataSourcePoolStatistics). The Kafka consumer metrics and the JVM metrics are bound by Spring Boot.
+ * <p>
+ * The per partition meters are registered when the partition's first event is received, then the events
+ * are recorded without allocating: the times are taken from the event's date times as epoch milliseconds
+ * and the timers' percentile histograms (HdrHistogram) are preallocated.
+ */
+@Component
+public class ConsumerMetrics {
+
+  private static final String OTHER_EVENT_TYPE = "other";
+
+  private static final long END_OFFSET_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private static final List<String> EVENT_TYPES = List.of(VandaHEventProcessor.EVENT_MEASUREMENT_ADDED,
+      VandaHEventProcessor.EVENT_MEASUREMENT_UPDATED, VandaHEventProcessor.EVENT_MEASUREMENT_DELETED);
+
+  // by event type, registered up front so counting looks up no tags
+  private final Map<String, Counter> receivedCounters;
+
+  private final Map<String, Counter> filteredCounters;
+
+  private final Map<String, Counter> processedCounters;
+
+  private final FunctionCounter rejectedCounter;
+
+  private final FunctionCounter coalescedCounter;
+
+  private final FunctionCounter duplicateCounter;
+
+  private final FunctionCounter stateCacheHitCounter;
+
+  private final FunctionCounter stateCacheMissCounter;
+
+  private final FunctionCounter writeQueuePauseCounter;
+
+  private final MeterRegistry registry;
+
+  // by partition
+  private final ConcurrentHashMap<Integer, PartitionMeters> partitionMeters = new ConcurrentHashMap<>();
+
+  public ConsumerMetrics(MeterRegistry registry, EventModelDeserializer deserializer, EventCoalescer coalescer,
+                         DatabaseService dbService, MeasurementStateCache stateCache, EventWriteQueue writeQueue) {
+    this.registry = registry;
+    receivedCounters = counters(registry, "vanda.events.received", "Decoded events", true);
+    filteredCounters = counters(registry, "vanda.events.filtered", "Events not accepted by the event filter", true);
+    processedCounters = counters(registry, "vanda.events.processed", "Events saved to the DB", false);
+    rejectedCounter = FunctionCounter.builder("vanda.events.rejected", deserializer,
+            EventModelDeserializer::getRejectedCount)
+        .description("Events rejected by the pre-scan before decoding")
+        .register(registry);
+    coalescedCounter = FunctionCounter.builder("vanda.events.coalesced", coalescer,
+            EventCoalescer::getCoalescedCount)
+        .description("Events coalesced with a later event of the same measurement")
+        .register(registry);
+    duplicateCounter = FunctionCounter.builder("vanda.events.duplicates", dbService,
+            DatabaseService::getDuplicateCount)
+        .description("Events skipped because they were already written")
+        .register(registry);
+    stateCacheHitCounter = FunctionCounter.builder("vanda.state_cache.gets", stateCache,
+            MeasurementStateCache::getHitCount)
+        .description("Lookups in the measurement state cache")
+        .tag("result", "hit")
+        .register(registry);
+    stateCacheMissCounter = FunctionCounter.builder("vanda.state_cache.gets", stateCache,
+            MeasurementStateCache::getMissCount)
+        .description("Lookups in the measurement state cache")
+        .tag("result", "miss")
+        .register(registry);
+    writeQueuePauseCounter = FunctionCounter.builder("vanda.write_queue.pauses", writeQueue,
+            EventWriteQueue::getPauseCount)
+        .description("Times the listener was paused by the write queue")
+        .register(registry);
+    if (writeQueue.isEnabled()) {
+      Gauge.builder("vanda.write_queue.size", writeQueue, EventWriteQueue::size)
+          .description("Events in the write queue")
+          .register(registry);
+    }
+  }
+
+  /**
+   * Counts a decoded event
+   *
+   * @param event
+   */
+  public void received(EventModel event) {
+    counter(receivedCounters, event.getEventType()).increment();
+  }
+
+  /**
+   * Counts an event not accepted by the event filter
+   *
+   * @param event
+   */
+  public void filtered(EventModel event) {
+    counter(filteredCounters, event.getEventType()).increment();
+  }
+
+  /**
+   * Counts a saved event and records its age (now, i.e. after its transaction is committed, minus its record
+   * timestamp) and its delay (record timestamp minus measurement time)
+   *
+   * @param event
+   */
+  public void processed(EventModel event) {
+    Counter counter = event.getEventType() != null ? processedCounters.get(event.getEventType()) : null;
+    if (counter != null) {
+      counter.increment();
+    }
+    if (event.getRecordDateTime() != null) {
+      PartitionMeters meters = partitionMeters(event.getPartition());
+      long recordTime = epochMillis(event.getRecordDateTime());
+      meters.eventAge.record(Math.max(System.currentTimeMillis() - recordTime, 0), TimeUnit.MILLISECONDS);
+      if (event.getMeasurementDateTime() != null) {
+        meters.eventDelay.record(Math.max(recordTime - epochMillis(event.getMeasurementDateTime()), 0),
+            TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Registers the position of a received record. Called by the listener container on the consumer thread
+   * (see KafkaConfiguration) before the record is processed. The end offset of the partition is taken from
+   * the consumer (its last fetch, no request) at most once a second.
+   *
+   * @param topic
+   * @param partition
+   * @param offset
+   * @param consumer
+   */
+  public void received(String topic, int partition, long offset, Consumer<?, ?> consumer) {
+    PartitionMeters meters = partitionMeters(partition);
+    meters.nextOffset = offset + 1;
+    long now = System.nanoTime();
+    if (now - meters.endOffsetNanos >= END_OFFSET_REFRESH_NANOS || meters.endOffset < 0) {
+      meters.endOffsetNanos = now;
+      TopicPartition topicPartition = meters.topicPartition(topic);
+      try {
+        OptionalLong lag = consumer.currentLag(topicPartition);
+        if (lag.isPresent()) {
+          meters.endOffset = consumer.position(topicPartition) + lag.getAsLong();
+        }
+      } catch (RuntimeException e) {
+        // e.g. the partition was revoked meanwhile, the end offset is taken again by the next record
+        meters.endOffsetNanos = 0;
+      }
+    }
+  }
+
+  /**
+   * @param partition
+   * @return events between the last received event and the end of the partition, -1 if not known
+   */
+  public long getLag(int partition) {
+    PartitionMeters meters = partitionMeters.get(partition);
+    return meters != null ? meters.lag() : -1;
+  }
+
+  /**
+   * @return number of decoded events since the start
+   */
+  public long getReceivedCount() {
+    long count = 0;
+    for (Counter counter : receivedCounters.values()) {
+      count += (long) counter.count();
+    }
+    return count;
+  }
+
+  /**
+   * @param eventType
+   * @return number of saved events of the type since the start
+   */
+  public long getProcessedCount(String eventType) {
+    Counter counter = eventType != null ? processedCounters.get(eventType) : null;
+    return counter != null ? (long) counter.count() : 0;
+  }
+
+  public long getRejectedCount() {
+    return (long) rejectedCounter.count();
+  }
+
+  public long getCoalescedCount() {
+    return (long) coalescedCounter.count();
+  }
+
+  public long getDuplicateCount() {
+    return (long) duplicateCounter.count();
+  }
+
+  public long getStateCacheHitCount() {
+    return (long) stateCacheHitCounter.count();
+  }
+
+  public long getStateCacheMissCount() {
+    return (long) stateCacheMissCounter.count();
+  }
+
+  public long getWriteQueuePauseCount() {
+    return (long) writeQueuePauseCounter.count();
+  }
+
+  private PartitionMeters partitionMeters(int partition) {
+    PartitionMeters meters = partitionMeters.get(partition);
+    if (meters == null) {
+      meters = partitionMeters.computeIfAbsent(partition, p -> new PartitionMeters(registry, p));
+    }
+    return meters;
+  }
+
+  private static long epochMillis(OffsetDateTime dateTime) {
+    return dateTime.toEpochSecond() * 1000 + dateTime.getNano() / 1_000_000;
+  }
+
+  private static Counter counter(Map<String, Counter> counters, String eventType) {
+    Counter counter = eventType != null ? counters.get(eventType) : null;
+    return counter != null ? counter : counters.get(OTHER_EVENT_TYPE);
+  }
+
+  private static Map<String, Counter> counters(MeterRegistry registry, String name, String description,
+                                               boolean otherType) {
+    Map<String, Counter> counters = new HashMap<>();
+    for (String eventType : EVENT_TYPES) {
+      counters.put(eventType, Counter.builder(name).description(description).tag("type", eventType)
+          .register(registry));
+    }
+    if (otherType) {
+      counters.put(OTHER_EVENT_TYPE, Counter.builder(name).description(description).tag("type", OTHER_EVENT_TYPE)
+          .register(registry));
+    }
+    return Map.copyOf(counters);
+  }
+
+  private static final class PartitionMeters {
+
+    private final int partition;
+
+    private final Timer eventAge;
+
+    private final Timer eventDelay;
+
+    private volatile TopicPartition topicPartition;
+
+    private volatile long nextOffset = -1;
+
+    private volatile long endOffset = -1;
+
+    private volatile long endOffsetNanos;
+
+    private PartitionMeters(MeterRegistry registry, int partition) {
+      this.partition = partition;
+      String tag = Integer.toString(partition);
+      eventAge = Timer.builder("vanda.event.age")
+          .description("Time from the event hub record timestamp until the event is saved")
+          .tag("partition", tag)
+          .publishPercentiles(0.5, 0.95, 0.99)
+          .publishPercentileHistogram()
+          .minimumExpectedValue(Duration.ofMillis(1))
+          .maximumExpectedValue(Duration.ofDays(7))
+          .register(registry);
+      eventDelay = Timer.builder("vanda.event.delay")
+          .description("Time from the measurement time until the event hub record timestamp")
+          .tag("partition", tag)
+          .publishPercentiles(0.5, 0.95, 0.99)
+          .publishPercentileHistogram()
+          .minimumExpectedValue(Duration.ofMillis(1))
+          .maximumExpectedValue(Duration.ofDays(365))
+          .register(registry);
+      Gauge.builder("vanda.partition.lag", this, meters -> meters.lag() >= 0 ? meters.lag() : Double.NaN)
+          .description("Events between the last received event and the end of the partition")
+          .tag("partition", tag)
+          .register(registry);
+    }
+
+    private TopicPartition topicPartition(String topic) {
+      TopicPartition current = topicPartition;
+      if (current == null || !current.topic().equals(topic)) {
+        current = new TopicPartition(topic, partition);
+        topicPartition = current;
+      }
+      return current;
+    }
+
+    private long lag() {
+      long next = nextOffset;
+      long end = endOffset;
+      return next >= 0 && end >= 0 ? Math.max(end - next, 0) : -1;
+    }
+  }
+}
@@ -4,17 +4,43 @@ import dk.dataforsyningen.vanda_hydrometry_event_consumer.dao.MeasurementDao;
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.dao.MeasurementTypeDao;
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.dao.StationDao;
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper.EventMeasurementMapper;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper.MeasurementCopyEncoder;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.BulkLoadResult;
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.Measurement;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementKey;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementState;
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementType;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementWriteResult;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.SourcePosition;
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.Station;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
 import java.time.OffsetDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import javax.sql.DataSource;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.datasource.DataSourceUtils;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -28,17 +54,93 @@ public class DatabaseService {
 
   private static Logger logger = LoggerFactory.getLogger(DatabaseService.class);
 
+  private static final Pattern TRANSIENT_SQL_STATE_CLASS = Pattern.compile("08|40|53|57");
+
   private final StationDao stationDao;
   private final MeasurementDao measurementDao;
   private final MeasurementTypeDao measurementTypeDao;
+  private final MeasurementStateCache stateCache;
+  private final OffsetStore offsetStore;
+  private final DataSource dataSource;
+
+  // skip the events already written, i.e. a record has the same source position (topic, partition and offset)
+  @Value("${dk.dataforsyningen.vanda_hydrometry_event_consumer.idempotentWrites:#{false}}")
+  private boolean idempotentWrites;
+
+  // the topic of the source positions, to be changed when the event hub is recreated with the same name
+  @Value("${dk.dataforsyningen.vanda_hydrometry_event_consumer.sourceTopic:${spring.kafka.topic}}")
+  private String sourceTopic;
+
+  private final LongAdder duplicateCounter = new LongAdder();
 
   public DatabaseService(StationDao stationDao, MeasurementDao measurementDao,
-                         MeasurementTypeDao measurementTypeDao) {
+                         MeasurementTypeDao measurementTypeDao,
+                         MeasurementStateCache stateCache,
+                         OffsetStore offsetStore,
+                         @Qualifier("vandaHydroDataDS") DataSource dataSource) {
     this.stationDao = stationDao;
     this.measurementDao = measurementDao;
     this.measurementTypeDao = measurementTypeDao;
+    this.stateCache = stateCache;
+    this.offsetStore = offsetStore;
+    this.dataSource = dataSource;
+  }
+
+  public boolean isIdempotentWrites() {
+    return idempotentWrites;
+  }
+
+  /**
+   * @return number of events skipped since the start because they were already written (see ConsumerMetrics)
+   */
+  public long getDuplicateCount() {
+    return duplicateCounter.sum();
   }
 
+  /**
+   * Fills the measurement state cache with the measurements written in the last hours
+   * (the most recent first, at most as many as the cache size).
+   *
+   * @param hours
+   * @param examinationTypes the measurements' examination types, all if empty
+   * @return number of cached measurements
+   */
+  public int warmUpStateCache(int hours, List<Integer> examinationTypes) {
+    if (!stateCache.isEnabled() || hours <= 0) {
+      return 0;
+    }
+    List<MeasurementState> states = measurementDao.readRecentMeasurementStates(
+        OffsetDateTime.now().minus(hours, ChronoUnit.HOURS), examinationTypes.isEmpty(),
+        examinationTypes, stateCache.getMaxSize());
+    //the most recent last, so they are the last to be evicted
+    for (MeasurementState state : states.reversed()) {
+      stateCache.put(state.getKey(), state);
+    }
+    return states.size();
+  }
+
+  /**
+   * Tells whether the error is likely to go away when the same write is retried later:
+   * the DB is unreachable or shutting down, out of resources, or the transaction was aborted
+   * by a deadlock or a serialization failure. Errors caused by the data itself
+   * (e.g. an unknown measurement type) are not transient.
+   *
+   * @param error thrown by a DB write, possibly wrapped
+   * @return true if the write should be retried
+   */
+  public static boolean isTransientError(Throwable error) {
+    for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+      if (cause instanceof SQLTransientException || cause instanceof SQLRecoverableException) {
+        return true;
+      }
+      //SQL state class: connection exception, transaction rollback, insufficient resources, operator intervention
+      if (cause instanceof SQLException sqlException && sqlException.getSQLState() != null &&
+          TRANSIENT_SQL_STATE_CLASS.matcher(sqlException.getSQLState()).lookingAt()) {
+        return true;
+      }
+    }
+    return false;
+  }
 
   /**
    * Get measurement history, i.e. all records about the requested measurement
@@ -75,11 +177,15 @@ public class DatabaseService {
   }
 
   /**
-   * Performs the following operations:
+   * Performs the following operations (in one transaction):
    * <p>
    * - converts event to a measurement
-   * - check if it is a delayed event
+   * - check if it is a delayed event from the measurement state cache, if cached
+   * (if idempotent writes, an event already written is counted as duplicate instead)
+   * - lock the measurement against concurrent writes (as for batches)
+   * - check if it is a delayed event (in the statement writing the measurement)
    * - if it is then drop it and WARN
+   * - if idempotent writes, check if the event was already written and count it as duplicate
    * - otherwise inactivate previous versions of this measurement, there should be none otherwise WARN
    * - add current measurement as active
    *
@@ -90,40 +196,55 @@ public class DatabaseService {
   @Transactional
   public Measurement addMeasurementFromEvent(EventModel event) throws SQLException {
 
-    Measurement newMeasurement = null;
+    Measurement measurement = measurementFrom(event);
 
-    Measurement measurement = EventMeasurementMapper.measurementFrom(event);
+    measurement.setIsCurrent(true); //make sure this will be the current measurement
 
-    boolean delayed = isEventDelayed(event);
+    MeasurementKey key = MeasurementKey.of(measurement);
+    if (isCachedDelayed(key, event)) {
+      dropCachedDelayed(event);
+      return null;
+    }
 
-    if (!delayed) {
-      logger.info("Deactivate older record of " + measurement + " measurement");
-      //inactivate previous versions
-      int nr = measurementDao.inactivateMeasurementHistory(measurement);
+    //with concurrent consumers two events of the measurement must not both see its previous state
+    measurementDao.lockMeasurements(List.of(measurement));
 
-      if (nr > 0) {
-        logger.warn("Added existing measurement: " + measurement);
-      }
+    //inactivate previous versions and add the new measurement unless delayed
+    MeasurementWriteResult result = measurementDao.writeMeasurement(measurement, idempotentWrites);
 
-      measurement.setIsCurrent(true); //make sure this will be the current measurement
+    if (result.isDuplicate()) {
+      duplicateCounter.increment();
+      return null;
+    }
 
-      logger.info("Insert/add active record of " + measurement + " measurement");
-      //add the new measurement
-      newMeasurement = measurementDao.insertMeasurement(measurement);
-    } else {
-      logger.warn("Delayed event received and dropped: " + event);
+    if (result.isDelayed()) {
+      stateCache.invalidate(key);
+      logger.warn("Delayed event received and dropped: {}", event);
+      return null;
     }
 
-    return newMeasurement;
+    cacheWrittenState(key, measurement);
+
+    if (result.getInactivated() > 0) {
+      logger.warn("Added existing measurement: {}", measurement);
+    }
+
+    logger.debug("Insert/add active record of {} measurement", measurement);
+
+    return measurement;
   }
 
 
   /**
-   * Performs the following operations:
+   * Performs the following operations (in one transaction):
    * <p>
    * - converts event to a measurement
-   * - check if it is a delayed event
+   * - check if it is a delayed event from the measurement state cache, if cached
+   * (if idempotent writes, an event already written is counted as duplicate instead)
+   * - lock the measurement against concurrent writes (as for batches)
+   * - check if it is a delayed event (in the statement writing the measurement)
    * - if it is then drop it and WARN
+   * - if idempotent writes, check if the event was already written and count it as duplicate
    * - otherwise inactivate previous versions of this measurement, there should be some otherwise WARN
    * - add current measurement as active
    *
@@ -134,31 +255,40 @@ public class DatabaseService {
   @Transactional
   public Measurement updateMeasurementFromEvent(EventModel event) {
 
-    Measurement newMeasurement = null;
+    Measurement measurement = measurementFrom(event);
 
-    Measurement measurement = EventMeasurementMapper.measurementFrom(event);
+    measurement.setIsCurrent(true); //make sure this will be the current measurement
 
-    boolean delayed = isEventDelayed(event);
+    MeasurementKey key = MeasurementKey.of(measurement);
+    if (isCachedDelayed(key, event)) {
+      dropCachedDelayed(event);
+      return null;
+    }
 
-    if (!delayed) {
-      //inactivate previous versions
-      int nr = measurementDao.inactivateMeasurementHistory(measurement);
+    //with concurrent consumers two events of the measurement must not both see its previous state
+    measurementDao.lockMeasurements(List.of(measurement));
 
-      if (nr == 0) {
-        logger.warn(
-            "Update on nonexistent measurement " + measurement + ". Measurement inserted as new!");
-      }
+    //inactivate previous versions and add the new measurement unless delayed
+    MeasurementWriteResult result = measurementDao.writeMeasurement(measurement, idempotentWrites);
 
-      measurement.setIsCurrent(true); //make sure this will be the current measurement
+    if (result.isDuplicate()) {
+      duplicateCounter.increment();
+      return null;
+    }
+
+    if (result.isDelayed()) {
+      stateCache.invalidate(key);
+      logger.warn("Delayed event received and dropped: {}", event);
+      return null;
+    }
 
-      //add the new measurement
-      newMeasurement = measurementDao.insertMeasurement(measurement);
+    cacheWrittenState(key, measurement);
 
-    } else {
-      logger.warn("Delayed event received and dropped: " + event);
+    if (result.getInactivated() == 0) {
+      logger.warn("Update on nonexistent measurement {}. Measurement inserted as new!", measurement);
     }
 
-    return newMeasurement;
+    return measurement;
   }
 
 
@@ -166,6 +296,8 @@ public class DatabaseService {
    * Performs the following operations:
    * <p>
    * - converts event to a measurement
+   * - lock the measurement against concurrent writes (as for batches)
+   * - if idempotent writes, check if the event was already written and count it as duplicate
    * - inactivate previous versions of this measurement, there should be some otherwise WARN
    * - add current measurement as inactive
    *
@@ -178,28 +310,297 @@ public class DatabaseService {
 
     Measurement newMeasurement = null;
 
-    Measurement measurement = EventMeasurementMapper.measurementFrom(event);
+    Measurement measurement = measurementFrom(event);
+
+    measurementDao.lockMeasurements(List.of(measurement));
+
+    if (idempotentWrites && measurementDao.isSourcePositionWritten(sourceTopic, event.getPartition(),
+        event.getOffset())) {
+      duplicateCounter.increment();
+      return null;
+    }
 
     //inactivate previous versions
     int nr = measurementDao.inactivateMeasurementHistory(measurement);
 
     if (nr == 0) {
-      logger.warn(
-          "Delete of nonexistent measurement (examinationType=" + event.getExaminationTypeSc() +
-              ") " + measurement + ". No deletion!");
+      logger.warn("Delete of nonexistent measurement (examinationType={}) {}. No deletion!",
+          event.getExaminationTypeSc(), measurement);
     } else {
       //add the new measurement as not current so that the timestamp is saved
       measurement.setIsCurrent(false); //no record is current on deletion
-      newMeasurement = measurementDao.insertMeasurement(measurement);
+      measurementDao.insertMeasurementRecord(measurement);
+      newMeasurement = measurement;
+
+      MeasurementKey key = MeasurementKey.of(measurement);
+      MeasurementState state = stateCache.get(key);
+      if (state != null) {
+        state.register(measurement.getVandaEventTimestamp(), false);
+        stateCache.putAfterCommit(Map.of(key, state));
+      } else {
+        stateCache.invalidate(key);
+      }
     }
 
     return newMeasurement;
   }
 
-  private boolean isEventDelayed(EventModel event) {
-    return measurementDao.isEventDelayed(event.getRecordDateTime(),
-        event.getStationId(), event.getMeasurementPointNumber(),
-        event.getExaminationTypeSc(), event.getMeasurementDateTime());
+  /**
+   * Converts the event to a measurement record with its source position
+   *
+   * @param event
+   * @return measurement
+   */
+  private Measurement measurementFrom(EventModel event) {
+    Measurement measurement = EventMeasurementMapper.measurementFrom(event);
+    measurement.setSourceTopic(sourceTopic);
+    return measurement;
+  }
+
+  /**
+   * Checks if the event is delayed according to the cached state of its measurement
+   *
+   * @param key
+   * @param event
+   * @return true if the measurement is cached and the event is delayed
+   */
+  private boolean isCachedDelayed(MeasurementKey key, EventModel event) {
+    MeasurementState state = stateCache.get(key);
+    return state != null && state.isDelayed(event.getRecordDateTime());
+  }
+
+  /**
+   * Drops an event delayed according to the measurement state cache with a WARN. If idempotent writes,
+   * an event already written is counted as duplicate instead: when it is redelivered, the cached state
+   * has its own timestamp, so it looks delayed.
+   *
+   * @param event
+   */
+  private void dropCachedDelayed(EventModel event) {
+    if (idempotentWrites && measurementDao.isSourcePositionWritten(sourceTopic, event.getPartition(),
+        event.getOffset())) {
+      duplicateCounter.increment();
+      return;
+    }
+    logger.warn("Delayed event received and dropped: {}", event);
+  }
+
+  /**
+   * Caches the state of a measurement after its new current record was written (not delayed):
+   * the new record has the latest timestamp of the history.
+   *
+   * @param key
+   * @param measurement
+   */
+  private void cacheWrittenState(MeasurementKey key, Measurement measurement) {
+    if (!stateCache.isEnabled()) {
+      return;
+    }
+    MeasurementState state = new MeasurementState();
+    state.register(measurement.getVandaEventTimestamp(), true);
+    if (state.getLatestTimestamp() == null) {
+      //without timestamp the record's creation time is used, not known here
+      stateCache.invalidate(key);
+      return;
+    }
+    stateCache.putAfterCommit(Map.of(key, state));
+  }
+
+  /**
+   * Processes a batch of events (in the received order) within one transaction
+   * with the same rules as the add, update and delete operations on single events:
+   * <p>
+   * - drop the additions and updates that are delayed according to the measurement state cache
+   * - lock the other events' measurements against concurrent batches (one query)
+   * - if idempotent writes, skip the events already written and count them as duplicates (one query),
+   * also the dropped ones: a redelivered event looks delayed in the cache that has its own timestamp
+   * - WARN for the other dropped events
+   * - read the history state of the measurements from the DB (one query), after the lock:
+   * the cached state is only used to drop events, whether the measurement has a current record
+   * and whether an event is accepted are always decided from the DB
+   * - check every event against the state, drop delayed events and WARN as for single events
+   * - inactivate the previous versions of the affected measurements in one batch
+   * - add all the new records in one batch, only the latest of each measurement being active
+   * - store the offsets after the events, if the offset store is enabled
+   *
+   * @param events
+   * @return inserted measurements
+   */
+  @Transactional
+  public List<Measurement> processEvents(List<EventModel> events) {
+
+    List<Measurement> newMeasurements = new ArrayList<>();
+
+    if (events.isEmpty()) {
+      return newMeasurements;
+    }
+
+    //the key and the new record of every event not dropped from the cache are created once
+    List<EventModel> cacheDropped = new ArrayList<>();
+    List<EventModel> pending = new ArrayList<>(events.size());
+    List<MeasurementKey> eventKeys = new ArrayList<>(events.size());
+    List<Measurement> eventMeasurements = new ArrayList<>(events.size());
+    HashMap<MeasurementKey, Measurement> measurements = new LinkedHashMap<>();
+    for (EventModel event : events) {
+      MeasurementKey key = MeasurementKey.of(event);
+      if (!VandaHEventProcessor.EVENT_MEASUREMENT_DELETED.equals(event.getEventType())
+          && isCachedDelayed(key, event)) {
+        //the history has at least the cached timestamp, so it is delayed in the DB as well
+        cacheDropped.add(event);
+        continue;
+      }
+      Measurement measurement = measurementFrom(event);
+      pending.add(event);
+      eventKeys.add(key);
+      eventMeasurements.add(measurement);
+      measurements.putIfAbsent(key, measurement);
+    }
+
+    HashMap<MeasurementKey, MeasurementState> states = new HashMap<>();
+    Set<SourcePosition> writtenPositions = Set.of();
+    List<Measurement> keys = new ArrayList<>(measurements.values());
+    if (!keys.isEmpty()) {
+      //with several consumers the same measurement can be received in concurrent batches
+      measurementDao.lockMeasurements(keys);
+    }
+
+    if (idempotentWrites) {
+      writtenPositions = new HashSet<>(measurementDao.readWrittenSourcePositions(sourceTopic,
+          events.stream().map(SourcePosition::of).toList()));
+    }
+    for (EventModel event : cacheDropped) {
+      if (writtenPositions.contains(SourcePosition.of(event))) {
+        duplicateCounter.increment();
+      } else {
+        logger.warn("Delayed event received and dropped: {}", event);
+      }
+    }
+
+    if (!keys.isEmpty()) {
+      //read after the lock, so the state includes the concurrent batches committed meanwhile
+      for (MeasurementState state : measurementDao.readMeasurementStates(keys)) {
+        states.put(state.getKey(), state);
+      }
+    }
+
+    //the new active record of each measurement, if any
+    HashMap<MeasurementKey, Measurement> currentMeasurements = new HashMap<>();
+    List<Measurement> inactivations = new ArrayList<>();
+
+    for (int i = 0; i < pending.size(); i++) {
+
+      EventModel event = pending.get(i);
+      if (!writtenPositions.isEmpty() && writtenPositions.contains(SourcePosition.of(event))) {
+        duplicateCounter.increment();
+        continue;
+      }
+      MeasurementKey key = eventKeys.get(i);
+      MeasurementState state = states.computeIfAbsent(key, k -> new MeasurementState());
+      Measurement measurement = eventMeasurements.get(i);
+
+      if (VandaHEventProcessor.EVENT_MEASUREMENT_DELETED.equals(event.getEventType())) {
+        if (!state.getIsCurrent()) {
+          logger.warn("Delete of nonexistent measurement (examinationType={}) {}. No deletion!",
+              event.getExaminationTypeSc(), measurement);
+          continue;
+        }
+        measurement.setIsCurrent(false); //no record is current on deletion
+      } else {
+        if (state.isDelayed(event.getRecordDateTime())) {
+          logger.warn("Delayed event received and dropped: {}", event);
+          continue;
+        }
+        if (VandaHEventProcessor.EVENT_MEASUREMENT_ADDED.equals(event.getEventType())
+            && state.getIsCurrent()) {
+          logger.warn("Added existing measurement: {}", measurement);
+        } else if (VandaHEventProcessor.EVENT_MEASUREMENT_UPDATED.equals(event.getEventType())
+            && !state.getIsCurrent()) {
+          logger.warn("Update on nonexistent measurement {}. Measurement inserted as new!", measurement);
+        }
+        measurement.setIsCurrent(true); //make sure this will be the current measurement
+      }
+
+      //inactivate the records from the DB only once, the records from this batch are inserted with the right state
+      Measurement previous = currentMeasurements.remove(key);
+      if (previous != null) {
+        previous.setIsCurrent(false);
+      } else if (state.getIsCurrent()) {
+        inactivations.add(measurement);
+      }
+      if (measurement.getIsCurrent()) {
+        currentMeasurements.put(key, measurement);
+      }
+
+      state.register(measurement.getVandaEventTimestamp(), measurement.getIsCurrent());
+      newMeasurements.add(measurement);
+    }
+
+    if (!inactivations.isEmpty()) {
+      measurementDao.inactivateMeasurementHistories(inactivations);
+    }
+    if (!newMeasurements.isEmpty()) {
+      measurementDao.insertMeasurements(newMeasurements);
+    }
+
+    offsetStore.save(events);
+
+    stateCache.putAfterCommit(states);
+
+    return newMeasurements;
+  }
+
+  /**
+   * Bulk loads a batch of events (in the received order) within one transaction,
+   * with the same rules as processEvents but set based:
+   * <p>
+   * - copy the events into a staging table (COPY in binary format)
+   * - lock the staged measurements against concurrent batches
+   * - if idempotent writes, skip the events already written and count them as duplicates
+   * - apply the delay check, the deactivation and the inserts for all the events in one statement
+   * - store the offsets after the events, if the offset store is enabled
+   * <p>
+   * The dropped events are not logged one by one but counted.
+   *
+   * @param events
+   * @return number of staged events, duplicates, deactivated and inserted records
+   * @throws SQLException
+   */
+  @Transactional
+  public BulkLoadResult loadEvents(List<EventModel> events) throws SQLException {
+
+    if (events.isEmpty()) {
+      return new BulkLoadResult();
+    }
+
+    measurementDao.createStagingTable();
+
+    //the connection of the transaction, also used by the DAO
+    Connection connection = DataSourceUtils.getConnection(dataSource);
+    try (OutputStream copy = new PGCopyOutputStream(connection.unwrap(PGConnection.class),
+        "copy measurement_staging from stdin (format binary)")) {
+      MeasurementCopyEncoder.encode(events, copy);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      DataSourceUtils.releaseConnection(connection, dataSource);
+    }
+
+    measurementDao.lockStagedMeasurements();
+
+    BulkLoadResult result = measurementDao.applyStagedMeasurements(idempotentWrites, sourceTopic);
+    duplicateCounter.add(result.getDuplicates());
+
+    offsetStore.save(events);
+
+    //the cached states of the loaded measurements are outdated
+    stateCache.invalidateAfterCommit(events.stream().map(MeasurementKey::of).toList());
+
+    if (result.getDropped() > 0) {
+      logger.warn("Bulk load dropped {} of {} events (delayed events or deletions of nonexistent measurements)",
+          result.getDropped(), result.getStaged());
+    }
+
+    return result;
   }
 
   /**
@@ -286,12 +687,16 @@ public class DatabaseService {
   }
 
   /**
-   * Inserts measurement into DB.
+   * Inserts measurement into DB and reads it back.
+   * Used for testing.
    *
    * @param measurement
+   * @return the inserted measurement
    */
   public Measurement addMeasurement(Measurement measurement) {
-    return measurementDao.insertMeasurement(measurement);
+    Measurement inserted = measurementDao.insertMeasurement(measurement);
+    stateCache.invalidate(MeasurementKey.of(measurement));
+    return inserted;
   }
 
   /**
@@ -301,6 +706,7 @@ public class DatabaseService {
    */
   public void inactivateMeasurementHistory(Measurement measurement) {
     measurementDao.inactivateMeasurementHistory(measurement);
+    stateCache.invalidate(MeasurementKey.of(measurement));
   }
 
   /**
@@ -311,6 +717,7 @@ public class DatabaseService {
    */
   public void deleteMeasurementHard(String stationId) {
     measurementDao.deleteMeasurementsForStation(stationId);
+    stateCache.clear();
   }
 
   /**
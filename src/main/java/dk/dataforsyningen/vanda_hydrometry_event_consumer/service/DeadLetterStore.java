@@ -0,0 +1,365 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.service;
+
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.VandaHEventConsumerConfig;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper.EventMessageEncoder;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper.EventModelDeserializer;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.DeadLetter;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.Header;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the event messages that could not be decoded or saved in local append-only files (segments),
+ * with their position in the event hub, the error class and the raw message, so they are not lost
+ * when their offsets are committed and can be replayed (see VandaHEventProcessor.replayDeadLetters).
+ * <p>
+ * The messages are appended to the newest segment until it reaches the segment size, then a new segment
+ * is started. A segment that has been replayed is renamed (".replayed") and no longer read.
+ * <p>
+ * Each message is one record: its length (int) followed by the dead-letter time, topic, partition, offset,
+ * record timestamp, error class, error message and the raw message (length and bytes, -1 if none).
+ * A record cut short by a crash is skipped.
+ * <p>
+ * The messages are forced to disk before add returns, as their offsets are committed afterwards.
+ * The events of a batch that could not be saved are forced once for the whole batch.
+ */
+@Component
+public class DeadLetterStore {
+
+  private static final Logger logger = LoggerFactory.getLogger(DeadLetterStore.class);
+
+  private static final String SEGMENT_SUFFIX = ".dlq";
+
+  private static final String REPLAYED_SUFFIX = ".replayed";
+
+  private static final int MAX_ERROR_MESSAGE_LENGTH = 1000;
+
+  private final Path directory;
+
+  private final long segmentBytes;
+
+  private final String topic;
+
+  private Path segment;
+
+  private FileChannel segmentChannel;
+
+  private long segmentSize;
+
+  private long sequence;
+
+  @Autowired
+  public DeadLetterStore(VandaHEventConsumerConfig config, @Value("${spring.kafka.topic}") String topic) {
+    this(config.getDeadLetterDir() == null || config.getDeadLetterDir().isEmpty() ? null :
+        Path.of(config.getDeadLetterDir()), config.getDeadLetterSegmentMb() * 1024L * 1024L, topic);
+  }
+
+  public DeadLetterStore(Path directory, long segmentBytes, String topic) {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.topic = topic;
+  }
+
+  public boolean isEnabled() {
+    return directory != null;
+  }
+
+  /**
+   * Adds a record that could not be decoded or saved. The raw message of an undecodable record
+   * is read from its headers (see EventModelDeserializer), a decoded event is encoded again.
+   *
+   * @param record
+   * @param error  the saving error, null if the record could not be decoded
+   */
+  public void add(ConsumerRecord<?, ?> record, Exception error) {
+    String errorClass = error != null ? error.getClass().getName() : null;
+    String errorMessage = error != null ? error.getMessage() : "Message could not be decoded";
+    byte[] value = null;
+    if (record.value() instanceof EventModel event) {
+      value = encode(event);
+    } else {
+      Header decodeError = record.headers().lastHeader(EventModelDeserializer.DECODE_ERROR_HEADER);
+      if (decodeError != null && errorClass == null) {
+        errorClass = new String(decodeError.value(), StandardCharsets.UTF_8);
+      }
+      Header rawValue = record.headers().lastHeader(EventModelDeserializer.RAW_VALUE_HEADER);
+      if (rawValue != null) {
+        value = rawValue.value();
+      }
+    }
+    add(new DeadLetter(System.currentTimeMillis(), record.topic(), record.partition(), record.offset(),
+        record.timestamp(), errorClass, errorMessage, value));
+  }
+
+  /**
+   * Adds an event that could not be saved
+   *
+   * @param event
+   * @param error
+   */
+  public void add(EventModel event, Exception error) {
+    add(deadLetterOf(event, error));
+  }
+
+  /**
+   * Adds the events of a batch that could not be saved, forced to disk once for the whole batch
+   *
+   * @param events
+   * @param error
+   */
+  public void add(List<EventModel> events, Exception error) {
+    List<DeadLetter> deadLetters = new ArrayList<>(events.size());
+    for (EventModel event : events) {
+      deadLetters.add(deadLetterOf(event, error));
+    }
+    addAll(deadLetters);
+  }
+
+  /**
+   * Appends the message to the newest segment and forces it to disk (does nothing but WARN if not enabled)
+   *
+   * @param deadLetter
+   */
+  public void add(DeadLetter deadLetter) {
+    addAll(List.of(deadLetter));
+  }
+
+  /**
+   * Appends the messages to the newest segment and forces them to disk once
+   * (does nothing but WARN if not enabled)
+   *
+   * @param deadLetters
+   */
+  public synchronized void addAll(List<DeadLetter> deadLetters) {
+    if (!isEnabled()) {
+      deadLetters.forEach(deadLetter -> logger.warn("Dead-letter store disabled, message lost: {}", deadLetter));
+      return;
+    }
+    try {
+      for (DeadLetter deadLetter : deadLetters) {
+        byte[] bytes = toBytes(deadLetter);
+        if (segmentChannel == null || segmentSize + bytes.length > segmentBytes) {
+          openSegment();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+          segmentChannel.write(buffer);
+        }
+        segmentSize += bytes.length;
+      }
+      // a full segment is forced when it is closed
+      segmentChannel.force(false);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Error writing to the dead-letter store " + directory, e);
+    }
+    deadLetters.forEach(deadLetter -> logger.warn("Message added to the dead-letter store: {}", deadLetter));
+  }
+
+  /**
+   * Reads the messages of the segments (the oldest first) and hands them over in batches.
+   * The segment being written is closed first and the messages added meanwhile (e.g. failing again)
+   * go to a new segment that is not read. A segment is renamed as replayed once all its messages are
+   * handled, so if the handler throws, the segment is read again by the next replay.
+   *
+   * @param batchSize
+   * @param handler
+   * @return number of messages read
+   */
+  public int replay(int batchSize, Consumer<List<DeadLetter>> handler) {
+    if (!isEnabled() || !Files.isDirectory(directory)) {
+      return 0;
+    }
+    List<Path> segments;
+    synchronized (this) {
+      closeSegment();
+      segments = listSegments();
+    }
+    int count = 0;
+    for (Path path : segments) {
+      List<DeadLetter> batch = new ArrayList<>(batchSize);
+      for (DeadLetter deadLetter : read(path)) {
+        batch.add(deadLetter);
+        if (batch.size() >= batchSize) {
+          handler.accept(batch);
+          count += batch.size();
+          batch = new ArrayList<>(batchSize);
+        }
+      }
+      if (!batch.isEmpty()) {
+        handler.accept(batch);
+        count += batch.size();
+      }
+      try {
+        Files.move(path, path.resolveSibling(path.getFileName() + REPLAYED_SUFFIX));
+      } catch (IOException e) {
+        throw new UncheckedIOException("Error renaming the replayed segment " + path, e);
+      }
+      logger.info("Replayed dead-letter segment {}", path);
+    }
+    return count;
+  }
+
+  /**
+   * Reads all the messages of a segment
+   *
+   * @param path
+   * @return messages in the order they were added
+   */
+  public List<DeadLetter> read(Path path) {
+    List<DeadLetter> deadLetters = new ArrayList<>();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      while (true) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+        byte[] bytes = new byte[length];
+        try {
+          in.readFully(bytes);
+        } catch (EOFException e) {
+          logger.warn("Incomplete last record skipped in dead-letter segment {}", path);
+          break;
+        }
+        deadLetters.add(fromBytes(bytes));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Error reading the dead-letter segment " + path, e);
+    }
+    return deadLetters;
+  }
+
+  /**
+   * @return the segments not replayed yet, the oldest first
+   */
+  public synchronized List<Path> listSegments() {
+    if (!isEnabled() || !Files.isDirectory(directory)) {
+      return List.of();
+    }
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Error listing the dead-letter store " + directory, e);
+    }
+  }
+
+  private DeadLetter deadLetterOf(EventModel event, Exception error) {
+    return new DeadLetter(System.currentTimeMillis(), topic, event.getPartition(), event.getOffset(),
+        event.getRecordDateTime() != null ? event.getRecordDateTime().toInstant().toEpochMilli() : 0,
+        error.getClass().getName(), error.getMessage(), encode(event));
+  }
+
+  private static byte[] encode(EventModel event) {
+    try {
+      return EventMessageEncoder.encode(event);
+    } catch (RuntimeException e) {
+      //e.g. a mandatory field is missing, the position is still kept
+      return null;
+    }
+  }
+
+  private void openSegment() throws IOException {
+    closeSegment();
+    Files.createDirectories(directory);
+    // named by creation time, so the names sort as the segments were written
+    segment = directory.resolve(String.format("dead-letter-%020d-%04d%s", System.currentTimeMillis(),
+        sequence++ % 10000, SEGMENT_SUFFIX));
+    segmentChannel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND);
+    segmentSize = segmentChannel.size();
+  }
+
+  private void closeSegment() {
+    if (segmentChannel == null) {
+      return;
+    }
+    try {
+      segmentChannel.force(false);
+      segmentChannel.close();
+    } catch (IOException e) {
+      logger.warn("Error closing the dead-letter segment {}: {}", segment, e.getMessage());
+    }
+    segmentChannel = null;
+    segment = null;
+  }
+
+  private static byte[] toBytes(DeadLetter deadLetter) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+    DataOutputStream data = new DataOutputStream(bytes);
+    data.writeInt(0);  //length, set below
+    data.writeLong(deadLetter.getDeadLetterTimestamp());
+    writeText(data, deadLetter.getTopic());
+    data.writeInt(deadLetter.getPartition());
+    data.writeLong(deadLetter.getOffset());
+    data.writeLong(deadLetter.getTimestamp());
+    writeText(data, deadLetter.getErrorClass());
+    String errorMessage = deadLetter.getErrorMessage();
+    writeText(data, errorMessage != null && errorMessage.length() > MAX_ERROR_MESSAGE_LENGTH ?
+        errorMessage.substring(0, MAX_ERROR_MESSAGE_LENGTH) : errorMessage);
+    byte[] value = deadLetter.getValue();
+    data.writeInt(value != null ? value.length : -1);
+    if (value != null) {
+      data.write(value);
+    }
+    data.flush();
+    byte[] record = bytes.toByteArray();
+    int length = record.length - 4;
+    record[0] = (byte) (length >>> 24);
+    record[1] = (byte) (length >>> 16);
+    record[2] = (byte) (length >>> 8);
+    record[3] = (byte) length;
+    return record;
+  }
+
+  private static DeadLetter fromBytes(byte[] bytes) throws IOException {
+    DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+    long deadLetterTimestamp = data.readLong();
+    String topic = readText(data);
+    int partition = data.readInt();
+    long offset = data.readLong();
+    long timestamp = data.readLong();
+    String errorClass = readText(data);
+    String errorMessage = readText(data);
+    int valueLength = data.readInt();
+    byte[] value = null;
+    if (valueLength >= 0) {
+      value = new byte[valueLength];
+      data.readFully(value);
+    }
+    return new DeadLetter(deadLetterTimestamp, topic, partition, offset, timestamp, errorClass, errorMessage, value);
+  }
+
+  // null is written as an empty text
+  private static void writeText(DataOutputStream data, String text) throws IOException {
+    data.writeUTF(text != null ? text : "");
+  }
+
+  private static String readText(DataInputStream data) throws IOException {
+    String text = data.readUTF();
+    return text.isEmpty() ? null : text;
+  }
+}
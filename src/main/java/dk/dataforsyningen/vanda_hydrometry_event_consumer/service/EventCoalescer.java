@@ -0,0 +1,149 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.service;
+
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.VandaHEventConsumerConfig;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementKey;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Coalesces the additions and updates of the same measurement received in one poll
+ * before they are saved, so that a chain of changes writes one history record instead of one per event.
+ * <p>
+ * A chain is a sequence of add and update events of a measurement, in the received order, whose
+ * timestamps are within the window from the chain's first event. It is replaced by its newest event,
+ * as an addition if the chain starts with an addition. A delete event ends the chain and is kept as it is.
+ * At most "maxMeasurements" chains are open at the same time, the oldest chain is closed when the limit is reached.
+ * <p>
+ * The coalesced events are counted. Coalescing is disabled when the window is 0.
+ */
+@Component
+public class EventCoalescer {
+
+  private final Duration window;
+
+  private final int maxMeasurements;
+
+  private final LongAdder coalescedCounter = new LongAdder();
+
+  @Autowired
+  public EventCoalescer(VandaHEventConsumerConfig config) {
+    this(config.getCoalesceWindowMs(), config.getCoalesceMaxMeasurements());
+  }
+
+  public EventCoalescer(long windowMs, int maxMeasurements) {
+    this.window = Duration.ofMillis(Math.max(windowMs, 0));
+    this.maxMeasurements = Math.max(maxMeasurements, 1);
+  }
+
+  public boolean isEnabled() {
+    return !window.isZero();
+  }
+
+  /**
+   * @return number of events coalesced since the start (see ConsumerMetrics)
+   */
+  public long getCoalescedCount() {
+    return coalescedCounter.sum();
+  }
+
+  /**
+   * Coalesces the chains of additions and updates of the same measurement
+   *
+   * @param events in the received order
+   * @return the remaining events, the events of each measurement in the received order
+   */
+  public List<EventModel> coalesce(List<EventModel> events) {
+    if (!isEnabled() || events.size() < 2) {
+      return events;
+    }
+
+    List<EventModel> output = new ArrayList<>(events.size());
+    LinkedHashMap<MeasurementKey, Chain> chains = new LinkedHashMap<>();
+
+    for (EventModel event : events) {
+      if (!event.hasMeasurementKey()) {
+        // not coalesced, left to fail on its own
+        output.add(event);
+        continue;
+      }
+      MeasurementKey key = MeasurementKey.of(event);
+      Chain chain = chains.get(key);
+
+      if (VandaHEventProcessor.EVENT_MEASUREMENT_DELETED.equals(event.getEventType()) ||
+          event.getRecordDateTime() == null) {
+        if (chain != null) {
+          output.add(chains.remove(key).close());
+        }
+        output.add(event);
+        continue;
+      }
+
+      if (chain != null && !chain.accepts(event)) {
+        output.add(chains.remove(key).close());
+        chain = null;
+      }
+      if (chain == null) {
+        if (chains.size() >= maxMeasurements) {
+          Iterator<Chain> oldest = chains.values().iterator();
+          output.add(oldest.next().close());
+          oldest.remove();
+        }
+        chains.put(key, new Chain(event));
+      } else {
+        chain.add(event);
+      }
+    }
+
+    for (Chain chain : chains.values()) {
+      output.add(chain.close());
+    }
+    return output;
+  }
+
+  /**
+   * The additions and updates of a measurement within the window
+   */
+  private class Chain {
+
+    private final OffsetDateTime start;
+    private final boolean added;
+    private EventModel newest;
+    private int size = 1;
+
+    private Chain(EventModel first) {
+      this.start = first.getRecordDateTime();
+      this.added = VandaHEventProcessor.EVENT_MEASUREMENT_ADDED.equals(first.getEventType());
+      this.newest = first;
+    }
+
+    private boolean accepts(EventModel event) {
+      return !event.getRecordDateTime().isAfter(start.plus(window));
+    }
+
+    private void add(EventModel event) {
+      //an older event would be dropped as delayed
+      if (!event.getRecordDateTime().isBefore(newest.getRecordDateTime())) {
+        newest = event;
+      }
+      size++;
+    }
+
+    private EventModel close() {
+      if (size > 1) {
+        coalescedCounter.add(size - 1);
+        if (added) {
+          newest.setEventType(VandaHEventProcessor.EVENT_MEASUREMENT_ADDED);
+        }
+      }
+      return newest;
+    }
+  }
+}
@@ -0,0 +1,184 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.service;
+
+import com.zaxxer.hikari.HikariDataSource;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.VandaHEventConsumerConfig;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementKey;
+import jakarta.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+/**
+ * Splits the events received in one poll into ordered worker lanes by measurement
+ * (stationId, measurementPointNumber, examinationTypeSc, measurementDateTime)
+ * and processes the lanes in parallel.
+ * <p>
+ * All the events of a measurement go to the same lane and a lane processes its events
+ * in the received order, so the history of each measurement is written in order while
+ * different measurements are written in parallel. The dispatch returns when all the lanes are done,
+ * so the offsets of the poll are committed only after all its events are processed,
+ * and an error of a lane is rethrown only when the other lanes are done.
+ * <p>
+ * In the virtual thread mode (see dispatchByMeasurement) each measurement gets its own lane
+ * on a virtual thread and the number of events written at the same time is limited by a semaphore
+ * with as many permits as the DB connection pool size.
+ * <p>
+ * The lanes only order the events of one poll: the events of a measurement dispatched at the same time
+ * by another consumer thread are kept in order by the DB lock taken when writing them (see DatabaseService).
+ */
+@Component
+public class EventLaneDispatcher {
+
+  private final int lanes;
+
+  private final ExecutorService executor;
+
+  private final ExecutorService virtualThreadExecutor =
+      Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("event-writer-", 0).factory());
+
+  private final Semaphore inFlight;
+
+  @Autowired
+  public EventLaneDispatcher(VandaHEventConsumerConfig config,
+                             @Qualifier("vandaHydroDataDS") HikariDataSource dataSource) {
+    this(config.getWorkerLanes(), dataSource.getMaximumPoolSize());
+  }
+
+  public EventLaneDispatcher(int lanes, int maxInFlight) {
+    this.lanes = Math.max(lanes, 1);
+    this.executor = this.lanes > 1 ?
+        Executors.newFixedThreadPool(this.lanes,
+            Thread.ofPlatform().name("event-lane-", 0).daemon(true).factory()) : null;
+    this.inFlight = new Semaphore(Math.max(maxInFlight, 1));
+  }
+
+  public int getLanes() {
+    return lanes;
+  }
+
+  /**
+   * Returns the lane of the given event
+   *
+   * @param event
+   * @return lane index
+   */
+  public int laneOf(EventModel event) {
+    return Math.floorMod(MeasurementKey.of(event).hashCode(), lanes);
+  }
+
+  /**
+   * Runs the action on the events of each lane (in the received order) and waits for all the lanes.
+   * With one lane the action runs on the calling thread with all the events.
+   *
+   * @param events
+   * @param action called once per non empty lane
+   * @throws RuntimeException thrown by the action (of one of the lanes), after all the lanes are done
+   */
+  public void dispatch(List<EventModel> events, Consumer<List<EventModel>> action) {
+    dispatch(events, this::laneOf, action);
+  }
+
+  /**
+   * Runs the action on the events of each lane as dispatch, but with the lanes chosen by partition:
+   * all the events of a partition go to the same lane, so each lane writes a contiguous part
+   * of its partitions (needed to store the offsets with the events, see OffsetStore).
+   * The events of a measurement received on different partitions may then be written in parallel.
+   *
+   * @param events
+   * @param action called once per non empty lane
+   * @throws RuntimeException thrown by the action (of one of the lanes), after all the lanes are done
+   */
+  public void dispatchByPartition(List<EventModel> events, Consumer<List<EventModel>> action) {
+    dispatch(events, event -> Math.floorMod(event.getPartition(), lanes), action);
+  }
+
+  private void dispatch(List<EventModel> events, ToIntFunction<EventModel> laneOf,
+                        Consumer<List<EventModel>> action) {
+    if (executor == null || events.size() < 2) {
+      action.accept(events);
+      return;
+    }
+
+    List<List<EventModel>> laneEvents = new ArrayList<>(lanes);
+    for (int i = 0; i < lanes; i++) {
+      laneEvents.add(new ArrayList<>());
+    }
+    for (EventModel event : events) {
+      laneEvents.get(laneOf.applyAsInt(event)).add(event);
+    }
+
+    List<CompletableFuture<Void>> running = new ArrayList<>(lanes);
+    for (List<EventModel> lane : laneEvents) {
+      if (!lane.isEmpty()) {
+        running.add(CompletableFuture.runAsync(() -> action.accept(lane), executor));
+      }
+    }
+    await(running);
+  }
+
+  /**
+   * Runs the action on every event, with one virtual thread per measurement running the action
+   * on the measurement's events in the received order, and waits for all the events.
+   * At most "maxInFlight" actions run at the same time.
+   *
+   * @param events
+   * @param action called once per event, an error stops the events after it in the same measurement
+   * @throws RuntimeException thrown by the action (on one of the events), after all the measurements are done
+   */
+  public void dispatchByMeasurement(List<EventModel> events, Consumer<EventModel> action) {
+    LinkedHashMap<MeasurementKey, List<EventModel>> measurementEvents = new LinkedHashMap<>();
+    for (EventModel event : events) {
+      measurementEvents.computeIfAbsent(MeasurementKey.of(event), k -> new ArrayList<>()).add(event);
+    }
+
+    List<CompletableFuture<Void>> running = new ArrayList<>(measurementEvents.size());
+    for (List<EventModel> lane : measurementEvents.values()) {
+      running.add(CompletableFuture.runAsync(() -> {
+        for (EventModel event : lane) {
+          inFlight.acquireUninterruptibly();
+          try {
+            action.accept(event);
+          } finally {
+            inFlight.release();
+          }
+        }
+      }, virtualThreadExecutor));
+    }
+    await(running);
+  }
+
+  /**
+   * Waits for all the tasks and rethrows the error of the first failed one (unwrapped)
+   *
+   * @param running
+   */
+  private static void await(List<CompletableFuture<Void>> running) {
+    try {
+      CompletableFuture.allOf(running.toArray(new CompletableFuture[0])).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw e;
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+    virtualThreadExecutor.shutdown();
+  }
+}
@@ -0,0 +1,200 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.service;
+
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.VandaHEventConsumerConfig;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
+import jakarta.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded queue between the listener and the DB writer, so the listener does not wait for the DB:
+ * the listener puts the received records and a writer thread saves them in batches, in the received order,
+ * and acknowledges them once saved (the listener container's ack mode is MANUAL, see KafkaConfiguration).
+ * <p>
+ * When the queue reaches the high watermark the listener container is paused: the consumer keeps polling
+ * (so it keeps its partitions during long DB stalls) but receives no records. It is resumed when the writer
+ * has brought the queue down to the low watermark. The records of the poll being processed when the container
+ * is paused are still queued, so the capacity should exceed the high watermark by "max.poll.records".
+ * The listener only waits for the writer if the queue is full.
+ */
+@Component
+public class EventWriteQueue {
+
+  private static final Logger logger = LoggerFactory.getLogger(EventWriteQueue.class);
+
+  private static final long ERROR_RETRY_INTERVAL_MS = 1000;
+
+  private final int capacity;
+
+  private final int highWatermark;
+
+  private final int lowWatermark;
+
+  private final int batchSize;
+
+  private final LinkedBlockingQueue<QueuedRecord> queue;
+
+  private final AtomicBoolean paused = new AtomicBoolean();
+
+  private final LongAdder pauseCounter = new LongAdder();
+
+  private volatile MessageListenerContainer container;
+
+  private Thread writerThread;
+
+  @Autowired
+  public EventWriteQueue(VandaHEventConsumerConfig config) {
+    this(config.getWriteQueueCapacity(), config.getWriteQueueHighWatermark(),
+        config.getWriteQueueLowWatermark(), config.getWriteQueueBatchSize());
+  }
+
+  public EventWriteQueue(int capacity, int highWatermark, int lowWatermark, int batchSize) {
+    this.capacity = Math.max(capacity, 0);
+    this.highWatermark = Math.clamp(highWatermark, 1, Math.max(this.capacity, 1));
+    this.lowWatermark = Math.clamp(lowWatermark, 0, this.highWatermark - 1);
+    this.batchSize = Math.max(batchSize, 1);
+    this.queue = this.capacity > 0 ? new LinkedBlockingQueue<>(this.capacity) : null;
+  }
+
+  public boolean isEnabled() {
+    return capacity > 0;
+  }
+
+  /**
+   * Starts the writer thread
+   *
+   * @param container the listener container to pause and resume
+   * @param writer    saves a batch of events (in the received order), returns when they are saved or skipped;
+   *                  if it throws a transient DB error (see DatabaseService.isTransientError) the batch is written
+   *                  again, if it throws another error the batch is logged and skipped
+   */
+  public synchronized void start(MessageListenerContainer container, Consumer<List<EventModel>> writer) {
+    if (!isEnabled() || writerThread != null) {
+      return;
+    }
+    this.container = container;
+    writerThread = Thread.ofPlatform().name("event-queue-writer").daemon(true).start(() -> write(writer));
+  }
+
+  /**
+   * Queues a received record, waiting only if the queue is full, and pauses the listener container
+   * if the queue reached the high watermark
+   *
+   * @param event the event to save, null if there is nothing to save (the record is only acknowledged)
+   * @param ack   acknowledges the record once saved
+   * @throws InterruptedException
+   */
+  public void put(EventModel event, Acknowledgment ack) throws InterruptedException {
+    queue.put(new QueuedRecord(event, ack));
+    if (queue.size() >= highWatermark && paused.compareAndSet(false, true)) {
+      pauseCounter.increment();
+      container.pause();
+      logger.info("Write queue reached " + queue.size() + " records, listener paused");
+    }
+  }
+
+  public int size() {
+    return queue != null ? queue.size() : 0;
+  }
+
+  public boolean isPaused() {
+    return paused.get();
+  }
+
+  /**
+   * @return number of times the listener container was paused since the start (see ConsumerMetrics)
+   */
+  public long getPauseCount() {
+    return pauseCounter.sum();
+  }
+
+  /**
+   * Returns the queue size and the given number of pauses (read from the meters, see ConsumerMetrics)
+   *
+   * @param pauses pauses since the previous report
+   * @return queue statistics
+   */
+  public String report(long pauses) {
+    return "write queue " + size() + "/" + capacity + " (paused " + pauses + " times" +
+        (isPaused() ? ", paused now" : "") + ")";
+  }
+
+  /**
+   * The writer thread: saves the queued events in batches, acknowledges them and resumes the listener
+   * container when the queue is down to the low watermark
+   *
+   * @param writer
+   */
+  private void write(Consumer<List<EventModel>> writer) {
+    List<QueuedRecord> records = new ArrayList<>(batchSize);
+    List<EventModel> events = new ArrayList<>(batchSize);
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        if (records.isEmpty()) {
+          QueuedRecord first = queue.poll(1, TimeUnit.SECONDS);
+          if (first != null) {
+            records.add(first);
+            queue.drainTo(records, batchSize - 1);
+          }
+        }
+        if (!records.isEmpty()) {
+          events.clear();
+          for (QueuedRecord record : records) {
+            if (record.event() != null) {
+              events.add(record.event());
+            }
+          }
+          if (!events.isEmpty()) {
+            writer.accept(events);
+          }
+          // in the received order, so the committed offsets never pass an event not saved
+          records.forEach(record -> record.ack().acknowledge());
+          records.clear();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (RuntimeException e) {
+        if (DatabaseService.isTransientError(e)) {
+          // the batch is written again, the queue fills up and the listener is paused meanwhile
+          logger.error("Error writing {} queued records, retrying: {}", records.size(), e.getMessage(), e);
+          try {
+            Thread.sleep(ERROR_RETRY_INTERVAL_MS);
+          } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+          }
+        } else {
+          // caused by the events, writing them again would fail again and block the queue
+          logger.error("Error writing {} queued records, skipped: {}, events: {}", records.size(), e.getMessage(),
+              events, e);
+          records.forEach(record -> record.ack().acknowledge());
+          records.clear();
+        }
+      }
+      if (paused.get() && queue.size() <= lowWatermark && paused.compareAndSet(true, false)) {
+        container.resume();
+        logger.info("Write queue down to " + queue.size() + " records, listener resumed");
+      }
+    }
+  }
+
+  @PreDestroy
+  public synchronized void shutdown() {
+    if (writerThread != null) {
+      writerThread.interrupt();
+    }
+  }
+
+  private record QueuedRecord(EventModel event, Acknowledgment ack) {
+  }
+}
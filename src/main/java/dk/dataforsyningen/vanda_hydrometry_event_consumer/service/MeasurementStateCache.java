@@ -0,0 +1,226 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.service;
+
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.VandaHEventConsumerConfig;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementKey;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementState;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Bounded (least recently used) cache of the measurements' history state (latest timestamp
+ * and whether there is a current record), so the delay check of most events is answered
+ * without reading the history from the DB.
+ * <p>
+ * The cache only holds committed states: states written within a transaction are removed
+ * before the commit and added after it. A state only replaces a cached state with the same
+ * or an earlier latest timestamp. On a miss the state is read from the DB.
+ * <p>
+ * The cache is disabled when its size is 0.
+ */
+@Component
+public class MeasurementStateCache {
+
+  private final int maxSize;
+
+  private final LinkedHashMap<MeasurementKey, MeasurementState> states;
+
+  private final LongAdder hits = new LongAdder();
+
+  private final LongAdder misses = new LongAdder();
+
+  @Autowired
+  public MeasurementStateCache(VandaHEventConsumerConfig config) {
+    this(config.getStateCacheSize());
+  }
+
+  public MeasurementStateCache(int maxSize) {
+    this.maxSize = Math.max(maxSize, 0);
+    this.states = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<MeasurementKey, MeasurementState> eldest) {
+        return size() > MeasurementStateCache.this.maxSize;
+      }
+    };
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public boolean isEnabled() {
+    return maxSize > 0;
+  }
+
+  /**
+   * Returns a copy of the cached state of the given measurement
+   *
+   * @param key
+   * @return state or null if not cached
+   */
+  public MeasurementState get(MeasurementKey key) {
+    if (!isEnabled()) {
+      return null;
+    }
+    MeasurementState state;
+    synchronized (states) {
+      state = states.get(key);
+    }
+    if (state == null) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return new MeasurementState(state);
+  }
+
+  /**
+   * Caches a copy of the given (committed) state unless a later state is cached
+   *
+   * @param key
+   * @param state
+   */
+  public void put(MeasurementKey key, MeasurementState state) {
+    if (!isEnabled()) {
+      return;
+    }
+    MeasurementState copy = new MeasurementState(state);
+    synchronized (states) {
+      MeasurementState cached = states.get(key);
+      if (cached == null || cached.getLatestTimestamp() == null ||
+          (copy.getLatestTimestamp() != null &&
+              !copy.getLatestTimestamp().isBefore(cached.getLatestTimestamp()))) {
+        states.put(key, copy);
+      }
+    }
+  }
+
+  /**
+   * Caches the given states when the current transaction is committed (and not before),
+   * or now if there is no transaction.
+   *
+   * @param written states of the measurements written in the transaction
+   */
+  public void putAfterCommit(Map<MeasurementKey, MeasurementState> written) {
+    if (!isEnabled() || written.isEmpty()) {
+      return;
+    }
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      written.forEach(this::put);
+      return;
+    }
+
+    Map<MeasurementKey, MeasurementState> copies = new HashMap<>(written);
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+      @Override
+      public void beforeCommit(boolean readOnly) {
+        //until committed the new states are neither in the cache nor visible to other transactions
+        invalidate(copies.keySet());
+      }
+
+      @Override
+      public void afterCompletion(int status) {
+        if (status == STATUS_COMMITTED) {
+          copies.forEach(MeasurementStateCache.this::put);
+        } else {
+          invalidate(copies.keySet());
+        }
+      }
+    });
+  }
+
+  /**
+   * Removes the given measurements from the cache now and when the current transaction is completed
+   * (the measurements may be cached again from the DB before the commit).
+   *
+   * @param keys measurements written in the transaction
+   */
+  public void invalidateAfterCommit(Collection<MeasurementKey> keys) {
+    if (!isEnabled() || keys.isEmpty()) {
+      return;
+    }
+    invalidate(keys);
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCompletion(int status) {
+          invalidate(keys);
+        }
+      });
+    }
+  }
+
+  /**
+   * Removes the given measurements from the cache
+   *
+   * @param keys
+   */
+  public void invalidate(Collection<MeasurementKey> keys) {
+    if (!isEnabled()) {
+      return;
+    }
+    synchronized (states) {
+      keys.forEach(states::remove);
+    }
+  }
+
+  /**
+   * Removes the given measurement from the cache
+   *
+   * @param key
+   */
+  public void invalidate(MeasurementKey key) {
+    if (!isEnabled()) {
+      return;
+    }
+    synchronized (states) {
+      states.remove(key);
+    }
+  }
+
+  /**
+   * Removes all the measurements from the cache
+   */
+  public void clear() {
+    synchronized (states) {
+      states.clear();
+    }
+  }
+
+  public int size() {
+    synchronized (states) {
+      return states.size();
+    }
+  }
+
+  /**
+   * @return number of lookups of a cached state since the start (see ConsumerMetrics)
+   */
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  /**
+   * @return number of lookups of a state not cached since the start (see ConsumerMetrics)
+   */
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * Returns the given number of hits and misses (read from the meters, see ConsumerMetrics) and the cache size.
+   *
+   * @param hits   hits since the previous report
+   * @param misses misses since the previous report
+   * @return cache statistics
+   */
+  public String report(long hits, long misses) {
+    return "state cache hits/misses: " + hits + "/" + misses + " (size " + size() + "/" + maxSize + ")";
+  }
+}
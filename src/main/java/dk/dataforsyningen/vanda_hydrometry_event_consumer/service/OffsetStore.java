@@ -0,0 +1,97 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.service;
+
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.VandaHEventConsumerConfig;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.dao.ConsumerOffsetDao;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.ConsumerOffset;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Stores the consumer's offsets in the DB (vanda.consumer_offset, see db/sql/consumer_offset.sql) in the same transaction
+ * as the measurements written from the events, so the stored offsets always match the written events.
+ * On partition assignment the consumer seeks to the stored offsets (see VandaHEventProcessor.onPartitionsAssigned),
+ * so the events already written are not processed again after a crash, even if their offsets
+ * were not committed to the Event Hub.
+ * <p>
+ * The stored offset of a partition is the offset after the newest written event. It is only valid if all
+ * the events before it are written in the same or an earlier transaction, so the events of a partition
+ * must be written in order by one transaction at a time (see EventLaneDispatcher.dispatchByPartition).
+ */
+@Component
+public class OffsetStore {
+
+  private final boolean enabled;
+
+  private final ConsumerOffsetDao consumerOffsetDao;
+
+  private final String consumerGroup;
+
+  private final String topic;
+
+  @Autowired
+  public OffsetStore(VandaHEventConsumerConfig config, ConsumerOffsetDao consumerOffsetDao,
+                     @Value("${spring.kafka.consumer.group-id}") String consumerGroup,
+                     @Value("${spring.kafka.topic}") String topic) {
+    this(config.isOffsetStore(), consumerOffsetDao, consumerGroup, topic);
+  }
+
+  public OffsetStore(boolean enabled, ConsumerOffsetDao consumerOffsetDao, String consumerGroup,
+                     String topic) {
+    this.enabled = enabled;
+    this.consumerOffsetDao = consumerOffsetDao;
+    this.consumerGroup = consumerGroup;
+    this.topic = topic;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Stores the offset after the newest of the events of each partition,
+   * within the current transaction if any (does nothing if not enabled).
+   *
+   * @param events written or dropped events
+   */
+  public void save(List<EventModel> events) {
+    if (!enabled || events.isEmpty()) {
+      return;
+    }
+    HashMap<Integer, Long> nextOffsets = new HashMap<>();
+    for (EventModel event : events) {
+      nextOffsets.merge(event.getPartition(), event.getOffset() + 1, Math::max);
+    }
+    List<ConsumerOffset> offsets = new ArrayList<>(nextOffsets.size());
+    nextOffsets.forEach(
+        (partition, nextOffset) -> offsets.add(new ConsumerOffset(consumerGroup, topic, partition, nextOffset)));
+    consumerOffsetDao.saveOffsets(offsets);
+  }
+
+  /**
+   * Returns the stored offsets of the topic's partitions
+   *
+   * @param topic
+   * @return partition -> offset of the next event to process
+   */
+  public Map<Integer, Long> read(String topic) {
+    TreeMap<Integer, Long> nextOffsets = new TreeMap<>();
+    for (ConsumerOffset offset : consumerOffsetDao.readOffsets(consumerGroup, topic)) {
+      nextOffsets.put(offset.getPartition(), offset.getNextOffset());
+    }
+    return nextOffsets;
+  }
+
+  /**
+   * Deletes the stored offsets of the topic's partitions, e.g. to replay the topic
+   */
+  public void delete() {
+    consumerOffsetDao.deleteOffsets(consumerGroup, topic);
+  }
+}
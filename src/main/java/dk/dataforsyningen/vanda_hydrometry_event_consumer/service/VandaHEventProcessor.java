@@ -1,200 +1,664 @@
 package dk.dataforsyningen.vanda_hydrometry_event_consumer.service;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.DataSourcePoolStatistics;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.EventFilterHolder;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.MetricsServer;
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.VandaHEventConsumerConfig;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper.EventModelDeserializer;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.DeadLetter;
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
 import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.internals.RecordHeaders;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.TransientDataAccessResourceException;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.event.ListenerContainerIdleEvent;
+import org.springframework.kafka.listener.ConsumerSeekAware;
 import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.kafka.support.Acknowledgment;
 import org.springframework.stereotype.Service;
 
 @Service
-public class VandaHEventProcessor {
+public class VandaHEventProcessor implements ConsumerSeekAware {
 
   public static final String EVENT_MEASUREMENT_ADDED = "MeasurementAdded";
   public static final String EVENT_MEASUREMENT_UPDATED = "MeasurementUpdated";
   public static final String EVENT_MEASUREMENT_DELETED = "MeasurementDeleted";
+  public static final String LISTENER_ID = "DMPEventHub";
+  public static final String BATCH_LISTENER_ID = "DMPEventHubBatch";
+  public static final String QUEUED_LISTENER_ID = "DMPEventHubQueued";
+  private static final long RETRY_INITIAL_INTERVAL_MS = 1000;
   private final Logger logger = LoggerFactory.getLogger(VandaHEventProcessor.class);
   @Autowired
   private DatabaseService dbService;
-  private final HashMap<Integer, Long> minOffset = new HashMap<>();
-  private final HashMap<Integer, Long> maxOffset = new HashMap<>();
-
-  private long lastReportTimestamp = 0L;
-  private long eventCounter = 0L;
-  private long eventCounterAdd = 0L;
-  private long eventCounterUpd = 0L;
-  private long eventCounterDel = 0L;
-  private long eventCounterAddTotal = 0L;
-  private long eventCounterUpdTotal = 0L;
-  private long eventCounterDelTotal = 0L;
-  private long eventCounterTotal = 0L;
-  private OffsetDateTime minRecordTime = null;
-  private OffsetDateTime maxRecordTime = null;
+  //the listener may run on several consumer threads (spring.kafka.listener.concurrency)
+  private final ConcurrentHashMap<Integer, Long> minOffset = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Integer, Long> maxOffset = new ConcurrentHashMap<>();
+
+  private final AtomicLong lastReportTimestamp = new AtomicLong();
+  //accepted events, for the sampling of the logged events
+  private final AtomicLong acceptedLogCounter = new AtomicLong();
+  //the event counters (see ConsumerMetrics) at the previous report
+  private final AtomicLong reportedReceived = new AtomicLong();
+  private final AtomicLong reportedAdded = new AtomicLong();
+  private final AtomicLong reportedUpdated = new AtomicLong();
+  private final AtomicLong reportedDeleted = new AtomicLong();
+  private final AtomicLong reportedRejected = new AtomicLong();
+  private final AtomicLong reportedCoalesced = new AtomicLong();
+  private final AtomicLong reportedDuplicates = new AtomicLong();
+  private final AtomicLong reportedStateCacheHits = new AtomicLong();
+  private final AtomicLong reportedStateCacheMisses = new AtomicLong();
+  private final AtomicLong reportedWriteQueuePauses = new AtomicLong();
+  private final AtomicReference<OffsetDateTime> minRecordTime = new AtomicReference<>();
+  private final AtomicReference<OffsetDateTime> maxRecordTime = new AtomicReference<>();
+  //bulk loading (backfill) until the listener is idle
+  private volatile boolean backfill = false;
 
   @Autowired
   private VandaHEventConsumerConfig config;
 
   @Autowired
-  private KafkaListenerEndpointRegistry kafkaListenerEndpointRegistry;
+  private DataSourcePoolStatistics poolStatistics;
 
-  @KafkaListener(id = "DMPEventHub", topics = "${spring.kafka.topic}", groupId = "${spring.kafka.consumer.group-id}", autoStartup = "false")
-  public void consume(ConsumerRecord<String, String> record
-      /*, Acknowledgment acknowledgment*/
-  ) {
+  @Autowired
+  private EventModelDeserializer eventModelDeserializer;
 
-    String rawMessage = "Raw Message -> Key: " + record.key() +
-        ", Value: " + record.value() +
-        " [offset=" + record.offset() +
-        "; partition=" + record.partition() +
-        "; ts=" + record.timestamp() + "]";
+  @Autowired
+  private EventFilterHolder eventFilter;
 
-    if (config.isDisplayAll()) {
-      System.out.println(rawMessage);
-    }
+  @Autowired
+  private EventLaneDispatcher laneDispatcher;
 
-    try {
-      // Process each message consumed from Azure Event Hub
-      EventModel event = new ObjectMapper().readValue(record.value(), EventModel.class);
+  @Autowired
+  private MeasurementStateCache stateCache;
+
+  @Autowired
+  private EventCoalescer eventCoalescer;
+
+  @Autowired
+  private OffsetStore offsetStore;
+
+  @Autowired
+  private DeadLetterStore deadLetterStore;
+
+  @Autowired
+  private EventWriteQueue writeQueue;
 
-      event.setPartition(record.partition());
-      event.setOffset(record.offset());
-      event.setRecordDateTime(OffsetDateTime.ofInstant(Instant.ofEpochMilli(record.timestamp()), ZoneOffset.UTC));
+  @Autowired
+  private ConsumerMetrics metrics;
+
+  @Autowired
+  private MetricsServer metricsServer;
+
+  @Autowired
+  private KafkaListenerEndpointRegistry kafkaListenerEndpointRegistry;
+
+  /**
+   * Receives one event and saves it to the DB if accepted.
+   * <p>
+   * The offset is committed by the listener container (see "spring.kafka.listener.ack-mode")
+   * after this method returns, i.e. after the event is saved. A transient DB error is rethrown,
+   * so the container's error handler retries the event (see KafkaConfiguration), other errors are logged
+   * and the event is added to the dead-letter store, as well as messages that cannot be decoded.
+   *
+   * @param record
+   */
+  @KafkaListener(id = LISTENER_ID, topics = "${spring.kafka.topic}", groupId = "${spring.kafka.consumer.group-id}", autoStartup = "false")
+  public void consume(ConsumerRecord<String, EventModel> record) {
+
+    try {
+      EventModel event = readEvent(record);
+      if (event == null) {
+        deadLetterIfUndecoded(record);
+        return;
+      }
 
       //skip undesired events
       if (acceptEvent(event)) {
-        logger.info(rawMessage);
+        displayAccepted(record, event);
 
-        if (config.isDisplayData()) {
-          System.out.printf("Message -> Key: %s, Value: %s%n", record.key(), event);
+        if (config.isSaveDb()) {
+          saveEvent(event);
+          countProcessed(event);
         }
+      }
 
-        if (config.isSaveDb()) {
+      registerReceived(event);
 
-          if (EVENT_MEASUREMENT_ADDED.equals(event.getEventType())) {
+      report();
+    } catch (Exception e) {
+      rethrowIfTransient(e);
+      logger.error("Error processing message: {}", e.getMessage(), e);
+      deadLetterStore.add(record, e);
+    }
+  }
 
-            dbService.addMeasurementFromEvent(event);
-            eventCounterAdd++;
-            eventCounterAddTotal++;
+  /**
+   * Receives all the events from one poll and saves the accepted ones to the DB
+   * in one transaction per worker lane or, in the virtual thread mode, each event on its own
+   * (see EventLaneDispatcher).
+   * <p>
+   * The offsets are committed by the listener container after this method returns, i.e. after all the lanes
+   * are committed. A transient DB error is rethrown, so the container's error handler retries the poll.
+   * If a lane fails with another error, its events are saved one by one and only the failing ones are skipped
+   * (added to the dead-letter store).
+   *
+   * @param records
+   */
+  @KafkaListener(id = BATCH_LISTENER_ID, topics = "${spring.kafka.topic}", groupId = "${spring.kafka.consumer.group-id}", autoStartup = "false", batch = "true")
+  public void consumeBatch(List<ConsumerRecord<String, EventModel>> records) {
+
+    List<EventModel> acceptedEvents = new ArrayList<>(records.size());
+
+    for (ConsumerRecord<String, EventModel> record : records) {
+      try {
+        EventModel event = readEvent(record);
+        if (event == null) {
+          deadLetterIfUndecoded(record);
+          continue;
+        }
+
+        //skip undesired events
+        if (acceptEvent(event)) {
+          displayAccepted(record, event);
+          acceptedEvents.add(event);
+        }
 
-          } else if (EVENT_MEASUREMENT_UPDATED.equals(event.getEventType())) {
+        registerReceived(event);
+      } catch (Exception e) {
+        logger.error("Error processing message: {}", e.getMessage(), e);
+        deadLetterStore.add(record, e);
+      }
+    }
 
-            dbService.updateMeasurementFromEvent(event);
-            eventCounterUpd++;
-            eventCounterUpdTotal++;
+    if (config.isSaveDb()) {
+      // only the newest of the changes of a measurement within the window is saved
+      acceptedEvents = eventCoalescer.coalesce(acceptedEvents);
+    }
 
-          } else if (EVENT_MEASUREMENT_DELETED.equals(event.getEventType())) {
+    if (config.isSaveDb() && !acceptedEvents.isEmpty()) {
+      saveAccepted(acceptedEvents, backfill);
+    }
 
-            dbService.deleteMeasurementFromEvent(event);
-            eventCounterDel++;
-            eventCounterDelTotal++;
-          }
+    report();
+  }
+
+  /**
+   * Receives one event and puts it into the write queue (see EventWriteQueue), so the consumer
+   * goes on polling while the events are saved by the queue's writer in batches (see saveQueued).
+   * The record is acknowledged by the writer once saved (or skipped), the listener container's
+   * ack mode is MANUAL (see KafkaConfiguration). Used instead of consume when the write queue is enabled.
+   *
+   * @param record
+   * @param ack
+   * @throws InterruptedException
+   */
+  @KafkaListener(id = QUEUED_LISTENER_ID, topics = "${spring.kafka.topic}", groupId = "${spring.kafka.consumer.group-id}", autoStartup = "false")
+  public void consumeQueued(ConsumerRecord<String, EventModel> record, Acknowledgment ack)
+      throws InterruptedException {
+
+    EventModel acceptedEvent = null;
+    try {
+      EventModel event = readEvent(record);
+      if (event == null) {
+        deadLetterIfUndecoded(record);
+      } else {
+        //skip undesired events
+        if (acceptEvent(event)) {
+          displayAccepted(record, event);
+          acceptedEvent = event;
         }
+        registerReceived(event);
       }
+    } catch (Exception e) {
+      logger.error("Error processing message: {}", e.getMessage(), e);
+      deadLetterStore.add(record, e);
+    }
+
+    // the skipped records are queued as well, so the records are acknowledged in order
+    writeQueue.put(acceptedEvent, ack);
+
+    report();
+  }
 
-      // Can be used to debugging and matching events from the logfile, offset is the page from event hub
-      //calculate offset min/max
-      if (!minOffset.containsKey(event.getPartition()) ||
-          event.getOffset() < minOffset.get(event.getPartition())) {
-        minOffset.put(event.getPartition(), event.getOffset());
+  /**
+   * Saves the accepted events of a poll (or of the write queue): in one transaction per worker lane or,
+   * in the virtual thread mode, each event on its own (see EventLaneDispatcher)
+   *
+   * @param acceptedEvents
+   * @param bulkLoad
+   */
+  private void saveAccepted(List<EventModel> acceptedEvents, boolean bulkLoad) {
+    if (config.isVirtualThreads() && !bulkLoad && !offsetStore.isEnabled()) {
+      // every event is saved on its own (as in the single event listener, locking its measurement),
+      // the measurements in parallel
+      laneDispatcher.dispatchByMeasurement(acceptedEvents, this::saveEventOrSkip);
+    } else {
+      // the measurements are saved in parallel lanes (one transaction per lane), each measurement in order
+      Consumer<List<EventModel>> saveLane = laneEvents -> saveEvents(laneEvents, bulkLoad);
+      if (offsetStore.isEnabled()) {
+        // the offsets are stored by lane, so each partition is saved in order by one lane
+        laneDispatcher.dispatchByPartition(acceptedEvents, saveLane);
+      } else {
+        laneDispatcher.dispatch(acceptedEvents, saveLane);
       }
-      if (!maxOffset.containsKey(event.getPartition()) ||
-          event.getOffset() > maxOffset.get(event.getPartition())) {
-        maxOffset.put(event.getPartition(), event.getOffset());
+    }
+  }
+
+  /**
+   * Saves a batch of events from the write queue. The writer has no listener container to retry the events,
+   * so a transient DB error is retried here with the back off of the container's error handler
+   * (see KafkaConfiguration.errorHandler): after 1 second, then twice as long each time up to "retryMaxIntervalMs",
+   * until "retryMaxElapsedMs" has elapsed and the events are added to the dead-letter store.
+   * Meanwhile the queue fills up and the listener is paused. The events failing with another error
+   * are added to the dead-letter store at once, so they do not block the queue.
+   *
+   * @param events
+   */
+  private void saveQueued(List<EventModel> events) {
+    List<EventModel> acceptedEvents = eventCoalescer.coalesce(events);
+    long start = System.currentTimeMillis();
+    long interval = RETRY_INITIAL_INTERVAL_MS;
+    while (true) {
+      try {
+        saveAccepted(acceptedEvents, false);
+        return;
+      } catch (RuntimeException e) {
+        if (!DatabaseService.isTransientError(e)) {
+          logger.error("Error saving {} queued events: {}", acceptedEvents.size(), e.getMessage(), e);
+          deadLetterStore.add(acceptedEvents, e);
+          return;
+        }
+        if (config.getRetryMaxElapsedMs() > 0 &&
+            System.currentTimeMillis() - start >= config.getRetryMaxElapsedMs()) {
+          logger.error("Error saving {} queued events, retries exhausted: {}", acceptedEvents.size(),
+              e.getMessage(), e);
+          deadLetterStore.add(acceptedEvents, e);
+          return;
+        }
+        logger.warn("Error saving {} queued events, retrying in {} ms: {}", acceptedEvents.size(), interval,
+            e.getMessage());
+        try {
+          Thread.sleep(interval);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw e;
+        }
+        interval = Math.min(interval * 2, Math.max(config.getRetryMaxIntervalMs(), RETRY_INITIAL_INTERVAL_MS));
       }
+    }
+  }
+
+  /**
+   * Adds, updates or deletes the event's measurement in the DB
+   *
+   * @param event
+   * @throws SQLException
+   */
+  private void saveEvent(EventModel event) throws SQLException {
+    if (offsetStore.isEnabled()) {
+      // the offset is stored in the same transaction
+      dbService.processEvents(List.of(event));
+
+    } else if (EVENT_MEASUREMENT_ADDED.equals(event.getEventType())) {
+
+      dbService.addMeasurementFromEvent(event);
+
+    } else if (EVENT_MEASUREMENT_UPDATED.equals(event.getEventType())) {
+
+      dbService.updateMeasurementFromEvent(event);
+
+    } else if (EVENT_MEASUREMENT_DELETED.equals(event.getEventType())) {
 
-      //calc min/max event record time. Is when the measurement event was created
-      if (minRecordTime == null || event.getRecordDateTime().isBefore(minRecordTime)) {
-        minRecordTime = event.getRecordDateTime();
+      dbService.deleteMeasurementFromEvent(event);
+    }
+  }
+
+  /**
+   * Saves the events in one transaction. If it fails with a non transient error, the events are saved
+   * one by one, so only the failing ones are skipped.
+   *
+   * @param events
+   * @param bulkLoad
+   */
+  private void saveEvents(List<EventModel> events, boolean bulkLoad) {
+    try {
+      if (bulkLoad) {
+        dbService.loadEvents(events);
+      } else {
+        dbService.processEvents(events);
       }
-      if (maxRecordTime == null || event.getRecordDateTime().isAfter(maxRecordTime)) {
-        maxRecordTime = event.getRecordDateTime();
+      events.forEach(this::countProcessed);
+    } catch (Exception e) {
+      rethrowIfTransient(e);
+      // the transaction is rolled back, so only the failing events are skipped
+      logger.error("Error processing batch of {} messages, saving them one by one: {}", events.size(),
+          e.getMessage(), e);
+      events.forEach(this::saveEventOrSkip);
+    }
+  }
+
+  /**
+   * Saves the event on its own, logging it and adding it to the dead-letter store if it fails
+   * with a non transient error
+   *
+   * @param event
+   */
+  private void saveEventOrSkip(EventModel event) {
+    try {
+      saveEvent(event);
+      countProcessed(event);
+    } catch (Exception e) {
+      rethrowIfTransient(e);
+      logger.error("Error processing message: {}", e.getMessage(), e);
+      deadLetterStore.add(event, e);
+    }
+  }
+
+  /**
+   * Adds the record to the dead-letter store if its message could not be decoded
+   * (the deserializer then adds the error to the record's headers)
+   *
+   * @param record
+   */
+  private void deadLetterIfUndecoded(ConsumerRecord<String, EventModel> record) {
+    if (record.headers().lastHeader(EventModelDeserializer.DECODE_ERROR_HEADER) != null) {
+      deadLetterStore.add(record, null);
+    }
+  }
+
+  /**
+   * Rethrows a transient DB error (see DatabaseService.isTransientError), so the listener container
+   * does not commit the offsets and retries the events (see KafkaConfiguration.errorHandler)
+   *
+   * @param e
+   */
+  private void rethrowIfTransient(Exception e) {
+    if (DatabaseService.isTransientError(e)) {
+      if (e instanceof RuntimeException runtimeException) {
+        throw runtimeException;
       }
+      throw new TransientDataAccessResourceException("Error saving events: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Returns the event decoded by the deserializer with the record's partition, offset and timestamp
+   *
+   * @param record
+   * @return event or null if the message could not be decoded (the error is logged by the deserializer)
+   * @throws IllegalArgumentException if the event does not identify its measurement (see EventModel.hasMeasurementKey),
+   *                                  so it is added to the dead-letter store on its own
+   */
+  private EventModel readEvent(ConsumerRecord<String, EventModel> record) {
+
+    EventModel event = record.value();
+    if (event == null) {
+      return null;
+    }
+    if (!event.hasMeasurementKey()) {
+      throw new IllegalArgumentException("Event without measurement point number, examination type or "
+          + "measurement date time at partition " + record.partition() + ", offset " + record.offset());
+    }
+
+    event.setPartition(record.partition());
+    event.setOffset(record.offset());
+    event.setRecordDateTime(OffsetDateTime.ofInstant(Instant.ofEpochMilli(record.timestamp()), ZoneOffset.UTC));
+
+    return event;
+  }
+
+  /**
+   * Logs the accepted event with level INFO, 1 in "eventLogSampling" events,
+   * and displays it if "displayData"
+   *
+   * @param record
+   * @param event
+   */
+  private void displayAccepted(ConsumerRecord<String, EventModel> record, EventModel event) {
+    if (logger.isInfoEnabled() &&
+        acceptedLogCounter.getAndIncrement() % Math.max(config.getEventLogSampling(), 1) == 0) {
+      logger.info("Message -> Key: {}, Value: {}", record.key(), event);
+    }
+
+    if (config.isDisplayData()) {
+      System.out.printf("Message -> Key: %s, Value: %s%n", record.key(), event);
+    }
+  }
+
+  private void countProcessed(EventModel event) {
+    metrics.processed(event);
+  }
+
+  private void registerReceived(EventModel event) {
+    // Can be used to debugging and matching events from the logfile, offset is the page from event hub
+    //calculate offset min/max
+    minOffset.merge(event.getPartition(), event.getOffset(), Math::min);
+    maxOffset.merge(event.getPartition(), event.getOffset(), Math::max);
+
+    //calc min/max event record time. Is when the measurement event was created
+    OffsetDateTime recordTime = event.getRecordDateTime();
+    minRecordTime.accumulateAndGet(recordTime,
+        (min, time) -> min == null || time.isBefore(min) ? time : min);
+    maxRecordTime.accumulateAndGet(recordTime,
+        (max, time) -> max == null || time.isAfter(max) ? time : max);
+
+    // event counter of received events (by type)
+    metrics.received(event);
+  }
 
-      //show report
-      // event counter of received events within this report time frame
-      eventCounter++;
-      // event counter of all received events since the application was started
-      eventCounterTotal++;
-      long now = System.currentTimeMillis();
-      if (config.getReportPeriodSec() > 0 &&
-          now > lastReportTimestamp + config.getReportPeriodSec() * 1000L) {
-
-        String msg =
-            "Received " + eventCounter + "/" + eventCounterTotal +
-                " events (processed a,u,d:" + eventCounterAdd + "/" + eventCounterAddTotal +  "," 
-            		+ eventCounterUpd + "/" + eventCounterUpdTotal + "," 
-            		+ eventCounterDel + "/" + eventCounterDelTotal + 
-                "); ";
-        // reset the event counter within this report period
-        eventCounter = 0;
-        //reset event counters
-        eventCounterAdd = eventCounterUpd = eventCounterDel = 0;
-
-        //display offset min/max
-        Iterator<Entry<Integer, Long>> iteratorMin = minOffset.entrySet().iterator();
-        while (iteratorMin.hasNext()) {
-            Map.Entry<Integer, Long> entryMin = iteratorMin.next();
-            int partition = entryMin.getKey();            
-            // find the oldest offset for this partition
-            long minimumOffset = entryMin.getValue();
-            // find the newest offset for this partition
-            long maximumOffset = maxOffset.get(partition);
-            
-            msg += "min/max for partition " + partition + ": " + minimumOffset + "/" + maximumOffset + "; ";
-            
-            //reset offset min/max
-            iteratorMin.remove();
-            maxOffset.remove(partition);  
+  private void report() {
+    //show report
+    long now = System.currentTimeMillis();
+    long last = lastReportTimestamp.get();
+    // only one of the consumer threads shows the report
+    if (config.getReportPeriodSec() > 0 &&
+        now > last + config.getReportPeriodSec() * 1000L &&
+        lastReportTimestamp.compareAndSet(last, now)) {
+
+      // event counters of all events since the application was started, read from the meters
+      // (events rejected by the deserializer do not reach the listener,
+      // events already written are skipped by the DB service)
+      long receivedTotal = metrics.getReceivedCount();
+      long rejectedTotal = metrics.getRejectedCount();
+      long addedTotal = metrics.getProcessedCount(EVENT_MEASUREMENT_ADDED);
+      long updatedTotal = metrics.getProcessedCount(EVENT_MEASUREMENT_UPDATED);
+      long deletedTotal = metrics.getProcessedCount(EVENT_MEASUREMENT_DELETED);
+      long coalescedTotal = metrics.getCoalescedCount();
+      long duplicatesTotal = metrics.getDuplicateCount();
+      // event counters within this report period
+      long received = sinceReport(reportedReceived, receivedTotal);
+      long eventCounterRejected = sinceReport(reportedRejected, rejectedTotal);
+
+      String msg =
+          "Received " + (received + eventCounterRejected) + "/" + (receivedTotal + rejectedTotal) +
+              " events (rejected before decoding: " + eventCounterRejected + "/" + rejectedTotal +
+              "; processed a,u,d:" + sinceReport(reportedAdded, addedTotal) + "/" + addedTotal + ","
+              + sinceReport(reportedUpdated, updatedTotal) + "/" + updatedTotal + ","
+              + sinceReport(reportedDeleted, deletedTotal) + "/" + deletedTotal +
+              (eventCoalescer.isEnabled() ? "; coalesced: " + sinceReport(reportedCoalesced, coalescedTotal) +
+                  "/" + coalescedTotal : "") +
+              (dbService.isIdempotentWrites() ? "; duplicates: " +
+                  sinceReport(reportedDuplicates, duplicatesTotal) + "/" + duplicatesTotal : "") +
+              "); ";
+
+      //display offset min/max and reset them
+      for (Integer partition : new TreeSet<>(minOffset.keySet())) {
+        // find the oldest offset for this partition
+        Long minimumOffset = minOffset.remove(partition);
+        // find the newest offset for this partition
+        Long maximumOffset = maxOffset.remove(partition);
+        // events still to receive, up to the end of the partition
+        long lag = metrics.getLag(partition);
+
+        msg += "min/max for partition " + partition + ": " + minimumOffset + "/" + maximumOffset +
+            (lag >= 0 ? " (lag " + lag + ")" : "") + "; ";
+      }
+      msg += "event creation timestamp between " + minRecordTime.getAndSet(null) + " and " +
+          maxRecordTime.getAndSet(null) +
+          (last > 0 ? (" within " + (int) ((now - last) / 1000) + " sec") : "");
+
+      //display connection pool usage and measurement state cache efficiency, read from the meters as well
+      if (config.isSaveDb()) {
+        msg += "; " + poolStatistics.report();
+        if (stateCache.isEnabled()) {
+          msg += "; " + stateCache.report(sinceReport(reportedStateCacheHits, metrics.getStateCacheHitCount()),
+              sinceReport(reportedStateCacheMisses, metrics.getStateCacheMissCount()));
+        }
+        if (writeQueue.isEnabled() && !config.isBatchListener()) {
+          msg += "; " + writeQueue.report(sinceReport(reportedWriteQueuePauses, metrics.getWriteQueuePauseCount()));
         }
-        msg += "event creation timestamp between " + minRecordTime + " and " + maxRecordTime +
-        		(lastReportTimestamp > 0 ?
-                        (" within " + (int) ((now - lastReportTimestamp) / 1000) + " sec") : "");
-        // remember the time when the report is shown
-        lastReportTimestamp = now;
-        //reset minRecordTime and maxRecordTime
-        minRecordTime = maxRecordTime = null;
-
-        logger.info(msg);
       }
 
-      /*acknowledgment.acknowledge();*/
-    } catch (Exception e) {
-      logger.error("Error processing message: " + e.getMessage(), e);
+      logger.info(msg);
     }
   }
 
+  /**
+   * @param reported the counter's value at the previous report, set to the current value
+   * @param total    the counter's current value
+   * @return the count since the previous report
+   */
+  private static long sinceReport(AtomicLong reported, long total) {
+    return total - reported.getAndSet(total);
+  }
+
   private boolean acceptEvent(EventModel event) {
-    List<Integer> allowedExaminations = config.getExaminationTypeSc();
-    boolean acceptExamination = (allowedExaminations.size() == 0 ||
-        allowedExaminations.contains(event.getExaminationTypeSc()));
+    boolean accepted = eventFilter.get().accept(event.getEventType(), event.getExaminationTypeSc());
+    if (!accepted) {
+      metrics.filtered(event);
+    }
+    return accepted;
+  }
+
+  /**
+   * Starts the batch listener bulk loading the events (see DatabaseService.loadEvents)
+   * until it has caught up with the event stream, i.e. until no event is received for
+   * "spring.kafka.listener.idle-event-interval". The events are then processed as by startListener.
+   */
+  public void startBackfill() {
+    if (!config.isBatchListener()) {
+      logger.info("Backfill uses the batch listener");
+      config.setBatchListener(true);
+    }
+    backfill = true;
+    startListener();
+  }
+
+  /**
+   * Replays the messages of the dead-letter store (see DeadLetterStore.replay) through the normal processing:
+   * decoding, filtering and saving in batches of "deadLetterReplayBatchSize" in one transaction each.
+   * The messages failing again are added to the store again. A transient DB error stops the replay,
+   * the segment being replayed is then replayed again by the next run.
+   *
+   * @return number of replayed messages
+   */
+  public int replayDeadLetters() {
+    eventFilter.reload();
+    int replayed = deadLetterStore.replay(Math.max(config.getDeadLetterReplayBatchSize(), 1), deadLetters -> {
+      List<EventModel> acceptedEvents = new ArrayList<>(deadLetters.size());
+      for (DeadLetter deadLetter : deadLetters) {
+        RecordHeaders headers = new RecordHeaders();
+        EventModel event = deadLetter.getValue() == null ? null : eventModelDeserializer.deserialize(
+            deadLetter.getTopic(), headers, ByteBuffer.wrap(deadLetter.getValue()));
+        if (event == null) {
+          if (deadLetter.getValue() == null || headers.lastHeader(EventModelDeserializer.DECODE_ERROR_HEADER) != null) {
+            deadLetterStore.add(deadLetter);
+          }
+          continue;
+        }
+        if (!event.hasMeasurementKey()) {
+          deadLetterStore.add(deadLetter);
+          continue;
+        }
+        event.setPartition(deadLetter.getPartition());
+        event.setOffset(deadLetter.getOffset());
+        event.setRecordDateTime(
+            OffsetDateTime.ofInstant(Instant.ofEpochMilli(deadLetter.getTimestamp()), ZoneOffset.UTC));
+        if (acceptEvent(event)) {
+          acceptedEvents.add(event);
+        }
+      }
+      if (!acceptedEvents.isEmpty()) {
+        saveEvents(acceptedEvents, false);
+      }
+      logger.info("Replayed " + deadLetters.size() + " dead letters, " + acceptedEvents.size() + " events accepted");
+    });
+    logger.info("Replayed " + replayed + " messages from the dead-letter store");
+    return replayed;
+  }
 
-    boolean acceptEventType =
-        (EVENT_MEASUREMENT_ADDED.equals(event.getEventType()) && config.processAdditions()) ||
-            (EVENT_MEASUREMENT_UPDATED.equals(event.getEventType()) && config.processUpdates()) ||
-            (EVENT_MEASUREMENT_DELETED.equals(event.getEventType()) && config.processDeletions());
+  public boolean isBackfill() {
+    return backfill;
+  }
 
-    return acceptExamination && acceptEventType;
+  @EventListener
+  public void onIdle(ListenerContainerIdleEvent event) {
+    if (backfill && BATCH_LISTENER_ID.equals(event.getListenerId())) {
+      backfill = false;
+      logger.info("Backfill caught up, continuing with the normal processing");
+    }
+  }
+
+  /**
+   * Moves the consumer to the offsets stored in the DB (see OffsetStore) when they are ahead of
+   * the committed offsets, i.e. when events were written but their offsets not committed before a crash.
+   *
+   * @param assignments partition -> current position
+   * @param callback
+   */
+  @Override
+  public void onPartitionsAssigned(Map<TopicPartition, Long> assignments, ConsumerSeekCallback callback) {
+    if (!offsetStore.isEnabled() || !config.isSaveDb() || assignments.isEmpty()) {
+      return;
+    }
+    String topic = assignments.keySet().iterator().next().topic();
+    Map<Integer, Long> storedOffsets = offsetStore.read(topic);
+    for (TopicPartition partition : assignments.keySet()) {
+      Long storedOffset = storedOffsets.get(partition.partition());
+      if (storedOffset != null) {
+        callback.seek(partition.topic(), partition.partition(), position -> Math.max(position, storedOffset));
+      }
+    }
+    logger.info("Partitions assigned " + assignments.keySet() + ", stored offsets " + storedOffsets);
   }
 
   // Start the listener programmatically
   public void startListener() {
+    boolean queued = !config.isBatchListener() && config.isSaveDb() && writeQueue.isEnabled();
     MessageListenerContainer listenerContainer =
-        kafkaListenerEndpointRegistry.getListenerContainer("DMPEventHub");
+        kafkaListenerEndpointRegistry.getListenerContainer(
+            config.isBatchListener() ? BATCH_LISTENER_ID : queued ? QUEUED_LISTENER_ID : LISTENER_ID);
     if (listenerContainer != null && !listenerContainer.isRunning()) {
+      eventFilter.reload();
+      if (config.isSaveDb() && stateCache.isEnabled() && stateCache.size() == 0) {
+        int cached = dbService.warmUpStateCache(config.getStateCacheWarmupHours(),
+            config.getExaminationTypeSc());
+        logger.info("Measurement state cache warmed up with " + cached + " measurements");
+      }
+      if (queued) {
+        writeQueue.start(listenerContainer, this::saveQueued);
+      }
+      metricsServer.start();
       listenerContainer.start();  // Start the listener
       logger.info("Kafka Listener started...");
     }
@@ -66,4 +66,15 @@ public class VandaHEventConsumerRunnerTest {
     verify(eventProcessor, times(1)).startListener();
   }
 
+  @Test
+  public void testBackfill() throws Exception {
+
+    String[] args = new String[1];
+    args[0] = "backfill";
+
+    runner.run(args);
+    verify(eventProcessor, times(1)).startBackfill();
+    assertTrue(config.isSaveDb());
+  }
+
 }
@@ -0,0 +1,67 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.service.VandaHEventProcessor;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class MeasurementCopyEncoderTest {
+
+  private final String stationId = "12345678";
+  private final int measurementPoint = 1;
+  private final int mtExamTypeSc = 25;
+
+  @Test
+  public void testCopyEncoder() throws IOException {
+
+    EventModel e = new EventModel();
+    e.setStationId(stationId);
+    e.setMeasurementPointNumber(measurementPoint);
+    e.setExaminationTypeSc(mtExamTypeSc);
+    e.setMeasurementDateTime("2024-10-04T23:50:00.00Z");
+    e.setEventType(VandaHEventProcessor.EVENT_MEASUREMENT_DELETED);
+    e.setRecordDateTime(OffsetDateTime.parse("2000-01-01T00:00:01Z"));
+    e.setPartition(3);
+    e.setOffset(1234567890123L);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MeasurementCopyEncoder.encode(List.of(e), out);
+    ByteBuffer copy = ByteBuffer.wrap(out.toByteArray());
+
+    byte[] signature = new byte[11];
+    copy.get(signature);
+    assertEquals("PGCOPY\n", new String(signature, 0, 7, StandardCharsets.US_ASCII));
+    assertEquals(0, copy.getInt());  //flags
+    assertEquals(0, copy.getInt());  //header extension
+    assertEquals(11, copy.getShort());  //fields
+    assertEquals(8, copy.getInt());
+    assertEquals(0, copy.getLong());  //seq
+    assertEquals(2, copy.getInt());
+    assertEquals(MeasurementCopyEncoder.EVENT_DELETED, copy.getShort());
+    assertEquals(stationId.length(), copy.getInt());
+    copy.position(copy.position() + stationId.length());
+    assertEquals(4, copy.getInt());
+    assertEquals(measurementPoint, copy.getInt());
+    assertEquals(4, copy.getInt());
+    assertEquals(mtExamTypeSc, copy.getInt());
+    assertEquals(8, copy.getInt());
+    copy.getLong();  //measurement date time
+    assertEquals(8, copy.getInt());
+    assertEquals(1_000_000L, copy.getLong());  //microseconds since 2000-01-01
+    assertEquals(-1, copy.getInt());  //no result
+    assertEquals(-1, copy.getInt());  //no value elevation corrected
+    assertEquals(4, copy.getInt());
+    assertEquals(3, copy.getInt());  //source partition
+    assertEquals(8, copy.getInt());
+    assertEquals(1234567890123L, copy.getLong());  //source offset
+    assertEquals(-1, copy.getShort());  //trailer
+    assertEquals(0, copy.remaining());
+  }
+}
@@ -6,14 +6,19 @@ import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.startsWith;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.VandaHEventConsumerConfig;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.dao.ConsumerOffsetDao;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.BulkLoadResult;
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.Measurement;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementKey;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementState;
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementType;
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.Station;
 import java.lang.reflect.Field;
@@ -21,7 +26,16 @@ import java.sql.SQLException;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import org.jdbi.v3.core.statement.UnableToExecuteStatementException;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -29,7 +43,9 @@ import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.springframework.aop.framework.AopProxyUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.util.ReflectionTestUtils;
 
 @SpringBootTest
 public class DatabaseServiceTest {
@@ -92,6 +108,18 @@ public class DatabaseServiceTest {
   @Autowired
   private VandaHEventConsumerConfig config;
 
+  @Autowired
+  private MeasurementStateCache stateCache;
+
+  @Autowired
+  private ConsumerOffsetDao consumerOffsetDao;
+
+  @Autowired
+  private EventLaneDispatcher laneDispatcher;
+
+  @Value("${spring.kafka.topic}")
+  private String consumerTopic;
+
   @BeforeEach
   public void setup() {
 
@@ -157,6 +185,9 @@ public class DatabaseServiceTest {
     event.setExaminationTypeSc(mtExamTypeSc1);
     event.setMeasurementDateTime(dt1DayAgoString);
 
+    //the test events have no real source position (all at offset 0), only testIdempotentWrites checks them
+    ReflectionTestUtils.setField(dbService, "idempotentWrites", false);
+
     deleteAll(); //clean first if any leftovers
 
     addStations();
@@ -1020,7 +1051,7 @@ public class DatabaseServiceTest {
 
     assertEquals(2, measurementHistory);
 
-    verify(log, times(1)).warn(startsWith("Added existing measurement"));
+    verify(log, times(1)).warn(startsWith("Added existing measurement"), any(Object.class));
 
   }
 
@@ -1100,7 +1131,7 @@ public class DatabaseServiceTest {
 
     assertEquals(1, measurementHistory);
 
-    verify(log, times(1)).warn(startsWith("Delayed event received and dropped"));
+    verify(log, times(1)).warn(startsWith("Delayed event received and dropped"), any(Object.class));
   }
 
 
@@ -1161,7 +1192,7 @@ public class DatabaseServiceTest {
 
     assertEquals(1, measurementHistory);
 
-    verify(log, times(1)).warn(startsWith("Delayed event received and dropped"));
+    verify(log, times(1)).warn(startsWith("Delayed event received and dropped"), any(Object.class));
   }
 
 
@@ -1205,7 +1236,7 @@ public class DatabaseServiceTest {
 
     assertEquals(1, measurementHistory);
 
-    verify(log, times(1)).warn(startsWith("Update on nonexistent measurement"));
+    verify(log, times(1)).warn(startsWith("Update on nonexistent measurement"), any(Object.class));
   }
 
 
@@ -1274,7 +1305,7 @@ public class DatabaseServiceTest {
 
     assertNull(measurement2);
 
-    verify(log, times(1)).warn(startsWith("Delayed event received and dropped"));
+    verify(log, times(1)).warn(startsWith("Delayed event received and dropped"), any(Object.class));
   }
 
   /**
@@ -1310,7 +1341,8 @@ public class DatabaseServiceTest {
     event.setRecordDateTime(dt10MinAgo);
     dbService.deleteMeasurementFromEvent(event);
 
-    verify(log, times(1)).warn(startsWith("Delete of nonexistent measurement"));
+    verify(log, times(1)).warn(startsWith("Delete of nonexistent measurement"), any(Object.class),
+        any(Object.class));
   }
 
 
@@ -1376,7 +1408,96 @@ public class DatabaseServiceTest {
 
     assertNull(currentMeasurement);
 
-    verify(log, times(1)).warn(startsWith("Delayed event received and dropped"));
+    verify(log, times(1)).warn(startsWith("Delayed event received and dropped"), any(Object.class));
+  }
+
+  /**
+   * Processing a batch of events should give the same result as processing them one by one:
+   * - received measurement added with TS NOW-10 min
+   * - received measurement update with TS NOW-5 min
+   * - received measurement update with TS NOW-10 min (delayed)
+   * - received measurement update with TS NOW
+   *
+   * @throws SecurityException
+   * @throws NoSuchFieldException
+   * @throws IllegalAccessException
+   * @throws IllegalArgumentException
+   */
+  @Test
+  public void testProcessEvents()
+      throws NoSuchFieldException, SecurityException, IllegalArgumentException,
+      IllegalAccessException {
+
+    if (!enableTest) {
+      return;
+    }
+
+    // Get the real class and not the Spring proxy so we can access the private logger
+    Class<?> databaseServiceClass = AopProxyUtils.ultimateTargetClass(dbService);
+    Field loggerField = databaseServiceClass.getDeclaredField("logger");
+    loggerField.setAccessible(true);
+    loggerField.set(dbService, mock(Logger.class));
+    Logger log = (Logger) loggerField.get(dbService);
+
+    event.setEventType(VandaHEventProcessor.EVENT_MEASUREMENT_ADDED);
+    event.setResult(resultA);
+    event.setRecordDateTime(dt10MinAgo);
+    EventModel added = new EventModel(event);
+
+    event.setEventType(VandaHEventProcessor.EVENT_MEASUREMENT_UPDATED);
+    event.setResult(resultB);
+    event.setRecordDateTime(dt5MinAgo);
+    EventModel updated = new EventModel(event);
+
+    event.setResult(resultC);
+    event.setRecordDateTime(dt10MinAgo);
+    EventModel delayed = new EventModel(event);
+
+    event.setRecordDateTime(dtNow);
+    EventModel updatedAgain = new EventModel(event);
+
+    List<Measurement> measurements =
+        dbService.processEvents(List.of(added, updated, delayed, updatedAgain));
+
+    assertEquals(3, measurements.size());
+
+    List<Measurement> history = dbService.getMeasurementHistory(event.getStationId(),
+        event.getMeasurementPointNumber(),
+        event.getExaminationTypeSc(),
+        event.getMeasurementDateTime());
+
+    assertEquals(3, history.size());
+
+    assertFalse(history.get(0).getIsCurrent());
+    assertEquals(resultA, history.get(0).getValue());
+    assertEquals(dt10MinAgo, history.get(0).getVandaEventTimestamp());
+
+    assertFalse(history.get(1).getIsCurrent());
+    assertEquals(resultB, history.get(1).getValue());
+    assertEquals(dt5MinAgo, history.get(1).getVandaEventTimestamp());
+
+    assertTrue(history.get(2).getIsCurrent());
+    assertEquals(resultC, history.get(2).getValue());
+    assertEquals(dtNow, history.get(2).getVandaEventTimestamp());
+
+    verify(log, times(1)).warn(startsWith("Delayed event received and dropped"), any(Object.class));
+
+    //////////////Received event MeasurementDeleted in a new batch
+    event.setEventType(VandaHEventProcessor.EVENT_MEASUREMENT_DELETED);
+    event.setResult(null);
+    event.setRecordDateTime(dt5MinAfter);
+    dbService.processEvents(List.of(new EventModel(event)));
+
+    Measurement currentMeasurement = dbService.getMeasurement(event.getStationId(),
+        event.getMeasurementPointNumber(),
+        event.getExaminationTypeSc(),
+        event.getMeasurementDateTime());
+
+    assertNull(currentMeasurement);
+    assertEquals(4, dbService.countMeasurementHistory(event.getStationId(),
+        event.getMeasurementPointNumber(),
+        event.getExaminationTypeSc(),
+        event.getMeasurementDateTime()));
   }
 
   private void addStations() {
@@ -1423,4 +1544,466 @@ public class DatabaseServiceTest {
         dbService.getMeasurement(stationId, measurementPoint1, mtExamTypeSc1, dt1DayAgo);
     assertNull(m);
   }
+
+  /**
+   * Bulk loading applies the same rules as processing the events
+   *
+   * @throws SQLException
+   */
+  @Test
+  public void testLoadEvents() throws SQLException {
+
+    if (!enableTest) {
+      return;
+    }
+
+    event.setEventType(VandaHEventProcessor.EVENT_MEASUREMENT_ADDED);
+    event.setResult(resultA);
+    event.setRecordDateTime(dt10MinAgo);
+    EventModel added = new EventModel(event);
+
+    event.setEventType(VandaHEventProcessor.EVENT_MEASUREMENT_UPDATED);
+    event.setResult(resultB);
+    event.setRecordDateTime(dt5MinAgo);
+    EventModel updated = new EventModel(event);
+
+    event.setResult(resultC);
+    event.setRecordDateTime(dt10MinAgo);
+    EventModel delayed = new EventModel(event);
+
+    event.setRecordDateTime(dtNow);
+    EventModel updatedAgain = new EventModel(event);
+
+    BulkLoadResult result = dbService.loadEvents(List.of(added, updated, delayed, updatedAgain));
+
+    assertEquals(4, result.getStaged());
+    assertEquals(3, result.getInserted());
+    assertEquals(0, result.getInactivated());
+    assertEquals(1, result.getDropped());
+
+    List<Measurement> history = dbService.getMeasurementHistory(event.getStationId(),
+        event.getMeasurementPointNumber(),
+        event.getExaminationTypeSc(),
+        event.getMeasurementDateTime());
+
+    assertEquals(3, history.size());
+
+    assertFalse(history.get(0).getIsCurrent());
+    assertEquals(resultA, history.get(0).getValue());
+    assertEquals(dt10MinAgo, history.get(0).getVandaEventTimestamp());
+
+    assertFalse(history.get(1).getIsCurrent());
+    assertEquals(resultB, history.get(1).getValue());
+
+    assertTrue(history.get(2).getIsCurrent());
+    assertEquals(resultC, history.get(2).getValue());
+    assertEquals(dtNow, history.get(2).getVandaEventTimestamp());
+
+    //////////////Received event MeasurementDeleted twice in a new batch
+    event.setEventType(VandaHEventProcessor.EVENT_MEASUREMENT_DELETED);
+    event.setResult(null);
+    event.setRecordDateTime(dt5MinAfter);
+    result = dbService.loadEvents(List.of(new EventModel(event), new EventModel(event)));
+
+    assertEquals(1, result.getInserted());
+    assertEquals(1, result.getInactivated());
+
+    assertNull(dbService.getMeasurement(event.getStationId(),
+        event.getMeasurementPointNumber(),
+        event.getExaminationTypeSc(),
+        event.getMeasurementDateTime()));
+    assertEquals(4, dbService.countMeasurementHistory(event.getStationId(),
+        event.getMeasurementPointNumber(),
+        event.getExaminationTypeSc(),
+        event.getMeasurementDateTime()));
+  }
+
+  /**
+   * Bulk loading and processing the same events leave the same history, also when a deletion
+   * is dropped before an event that is only delayed by the deletion's timestamp
+   *
+   * @throws SQLException
+   */
+  @Test
+  public void testLoadEventsAsProcessEvents() throws SQLException {
+
+    if (!enableTest) {
+      return;
+    }
+
+    String[] types = {VandaHEventProcessor.EVENT_MEASUREMENT_ADDED,
+        VandaHEventProcessor.EVENT_MEASUREMENT_UPDATED, VandaHEventProcessor.EVENT_MEASUREMENT_DELETED};
+
+    //the dropped deletion (10 s) does not delay the addition (5 s)
+    assertSameHistory(List.of(List.of(eventAt(types[2], 10, 0), eventAt(types[0], 5, 1))));
+
+    Random random = new Random(42);
+    for (int round = 0; round < 30; round++) {
+      List<List<EventModel>> batches = new ArrayList<>();
+      int value = 0;
+      for (int batch = 0; batch < 2; batch++) {
+        List<EventModel> events = new ArrayList<>();
+        int size = 1 + random.nextInt(6);
+        for (int i = 0; i < size; i++) {
+          events.add(eventAt(types[random.nextInt(types.length)], random.nextInt(6), value++));
+        }
+        batches.add(events);
+      }
+      assertSameHistory(batches);
+    }
+  }
+
+  private EventModel eventAt(String eventType, int seconds, int value) {
+    EventModel e = new EventModel(event);
+    e.setEventType(eventType);
+    e.setResult(VandaHEventProcessor.EVENT_MEASUREMENT_DELETED.equals(eventType) ? null : (double) value);
+    e.setRecordDateTime(dtNow.plusSeconds(seconds));
+    return e;
+  }
+
+  /**
+   * Writes the batches of events to one measurement with processEvents
+   * and to another with loadEvents and compares the histories
+   *
+   * @param batches
+   * @throws SQLException
+   */
+  private void assertSameHistory(List<List<EventModel>> batches) throws SQLException {
+    dbService.deleteMeasurementHard(stationId);
+
+    for (List<EventModel> batch : batches) {
+      dbService.processEvents(batch.stream().map(e -> {
+        EventModel processed = new EventModel(e);
+        processed.setMeasurementDateTime(dt1DayAgoString);
+        return processed;
+      }).toList());
+      dbService.loadEvents(batch.stream().map(e -> {
+        EventModel loaded = new EventModel(e);
+        loaded.setMeasurementDateTime(dt10MinAgoString);
+        return loaded;
+      }).toList());
+    }
+
+    List<String> processed = dbService.getMeasurementHistory(stationId, measurementPoint1, mtExamTypeSc1, dt1DayAgo)
+        .stream().map(m -> m.getValue() + "@" + m.getVandaEventTimestamp() + (m.getIsCurrent() ? " current" : ""))
+        .toList();
+    List<String> loaded = dbService.getMeasurementHistory(stationId, measurementPoint1, mtExamTypeSc1, dt10MinAgo)
+        .stream().map(m -> m.getValue() + "@" + m.getVandaEventTimestamp() + (m.getIsCurrent() ? " current" : ""))
+        .toList();
+    assertEquals(processed, loaded, "events " + batches.stream()
+        .map(batch -> batch.stream().map(e -> e.getEventType() + "@" + e.getRecordDateTime()).toList()).toList());
+  }
+
+  /**
+   * The measurement state cache is filled by the writes and by the warm-up
+   * and answers the delay check of the cached measurements
+   */
+  @Test
+  public void testMeasurementStateCache() throws SQLException {
+
+    if (!enableTest || !stateCache.isEnabled()) {
+      return;
+    }
+
+    MeasurementKey key = MeasurementKey.of(event);
+
+    event.setEventType(VandaHEventProcessor.EVENT_MEASUREMENT_ADDED);
+    event.setResult(resultA);
+    event.setRecordDateTime(dt10MinAgo);
+    assertNotNull(dbService.addMeasurementFromEvent(new EventModel(event)));
+
+    assertEquals(dt10MinAgo, stateCache.get(key).getLatestTimestamp());
+    assertTrue(stateCache.get(key).getIsCurrent());
+
+    //delayed, dropped from the cache
+    assertNull(dbService.updateMeasurementFromEvent(new EventModel(event)));
+
+    event.setEventType(VandaHEventProcessor.EVENT_MEASUREMENT_UPDATED);
+    event.setResult(resultB);
+    event.setRecordDateTime(dt5MinAgo);
+    dbService.processEvents(List.of(new EventModel(event)));
+
+    assertEquals(dt5MinAgo, stateCache.get(key).getLatestTimestamp());
+
+    event.setEventType(VandaHEventProcessor.EVENT_MEASUREMENT_DELETED);
+    event.setRecordDateTime(dtNow);
+    assertNotNull(dbService.deleteMeasurementFromEvent(new EventModel(event)));
+
+    assertEquals(dtNow, stateCache.get(key).getLatestTimestamp());
+    assertFalse(stateCache.get(key).getIsCurrent());
+
+    //added, updated and the deletion's record
+    assertEquals(3, dbService.countMeasurementHistory(event.getStationId(),
+        event.getMeasurementPointNumber(),
+        event.getExaminationTypeSc(),
+        event.getMeasurementDateTime()));
+
+    //warm up from the DB
+    stateCache.clear();
+    assertTrue(dbService.warmUpStateCache(1, List.of(mtExamTypeSc1)) >= 1);
+    assertEquals(dtNow, stateCache.get(key).getLatestTimestamp());
+    assertFalse(stateCache.get(key).getIsCurrent());
+
+    //the current record is read from the DB, even if the cache has another state
+    MeasurementState stale = new MeasurementState();
+    stale.register(dtNow, true);
+    stateCache.put(key, stale);
+    event.setRecordDateTime(dt5MinAfter);
+    assertTrue(dbService.processEvents(List.of(new EventModel(event))).isEmpty());
+    assertEquals(3, dbService.countMeasurementHistory(event.getStationId(),
+        event.getMeasurementPointNumber(),
+        event.getExaminationTypeSc(),
+        event.getMeasurementDateTime()));
+  }
+
+  /**
+   * The offsets are stored per partition and never moved back
+   */
+  @Test
+  public void testOffsetStore() {
+
+    if (!enableTest) {
+      return;
+    }
+
+    OffsetStore offsetStore = new OffsetStore(true, consumerOffsetDao, "test_group", "test_topic");
+    offsetStore.delete();
+
+    EventModel e1 = new EventModel(event);
+    e1.setPartition(0);
+    e1.setOffset(5);
+    EventModel e2 = new EventModel(e1);
+    e2.setOffset(7);
+    EventModel e3 = new EventModel(e1);
+    e3.setPartition(1);
+    e3.setOffset(3);
+
+    offsetStore.save(List.of(e1, e2, e3));
+    assertEquals(Map.of(0, 8L, 1, 4L), offsetStore.read("test_topic"));
+
+    //a redelivered event does not move the offset back
+    offsetStore.save(List.of(e1));
+    assertEquals(8L, offsetStore.read("test_topic").get(0));
+    assertTrue(offsetStore.read("other_topic").isEmpty());
+
+    offsetStore.delete();
+    assertTrue(offsetStore.read("test_topic").isEmpty());
+  }
+
+  /**
+   * The redelivered events (same partition and offset) are skipped and counted as duplicates
+   * by every write path
+   */
+  @Test
+  public void testIdempotentWrites() throws SQLException {
+
+    if (!enableTest) {
+      return;
+    }
+
+    ReflectionTestUtils.setField(dbService, "idempotentWrites", true);
+    long duplicates = dbService.getDuplicateCount();
+    stateCache.clear();
+
+    //negative partition, so no real event has the same position
+    event.setPartition(-1);
+
+    event.setEventType(VandaHEventProcessor.EVENT_MEASUREMENT_ADDED);
+    event.setResult(resultA);
+    event.setRecordDateTime(dt10MinAgo);
+    event.setOffset(1);
+    EventModel added = new EventModel(event);
+    assertNotNull(dbService.addMeasurementFromEvent(added));
+
+    event.setEventType(VandaHEventProcessor.EVENT_MEASUREMENT_UPDATED);
+    event.setResult(resultB);
+    event.setRecordDateTime(dt5MinAgo);
+    event.setOffset(2);
+    EventModel updated = new EventModel(event);
+    //the redelivered addition is dropped by the cache with its own timestamp, still counted as duplicate
+    assertEquals(1, dbService.processEvents(List.of(added, updated)).size());
+
+    Measurement current = dbService.getMeasurement(stationId, measurementPoint1, mtExamTypeSc1, dt1DayAgo);
+    assertEquals(consumerTopic, current.getSourceTopic());
+    assertEquals(-1, current.getSourcePartition().intValue());
+    assertEquals(2L, current.getSourceOffset().longValue());
+
+    //redelivered, even if not delayed according to the state
+    stateCache.clear();
+    assertNull(dbService.addMeasurementFromEvent(new EventModel(added)));
+    assertNull(dbService.updateMeasurementFromEvent(new EventModel(updated)));
+    assertTrue(dbService.processEvents(List.of(added, updated)).isEmpty());
+
+    //redelivered, delayed according to the cached state of their own writes
+    if (stateCache.isEnabled()) {
+      assertEquals(dt5MinAgo, stateCache.get(MeasurementKey.of(updated)).getLatestTimestamp());
+    }
+    assertNull(dbService.addMeasurementFromEvent(new EventModel(added)));
+    assertNull(dbService.updateMeasurementFromEvent(new EventModel(updated)));
+    assertTrue(dbService.processEvents(List.of(added, updated)).isEmpty());
+    assertEquals(duplicates + 1 + 4 + 4, dbService.getDuplicateCount());
+
+    //a delayed event not written yet is not a duplicate
+    event.setRecordDateTime(dt10MinAgo);
+    event.setOffset(4);
+    assertNull(dbService.updateMeasurementFromEvent(new EventModel(event)));
+    assertTrue(dbService.processEvents(List.of(new EventModel(event))).isEmpty());
+    assertEquals(duplicates + 1 + 4 + 4, dbService.getDuplicateCount());
+
+    event.setEventType(VandaHEventProcessor.EVENT_MEASUREMENT_DELETED);
+    event.setRecordDateTime(dtNow);
+    event.setOffset(3);
+    EventModel deleted = new EventModel(event);
+    assertNotNull(dbService.deleteMeasurementFromEvent(deleted));
+    assertNull(dbService.deleteMeasurementFromEvent(new EventModel(deleted)));
+
+    BulkLoadResult result = dbService.loadEvents(List.of(added, updated, deleted));
+    assertEquals(3, result.getDuplicates());
+    assertEquals(0, result.getInserted());
+    assertEquals(0, result.getDropped());
+
+    assertEquals(3, dbService.countMeasurementHistory(stationId, measurementPoint1, mtExamTypeSc1, dt1DayAgo));
+    assertEquals(duplicates + 1 + 4 + 4 + 1 + 3, dbService.getDuplicateCount());
+
+    //the same positions of another topic (e.g. the recreated event hub) were not written
+    ReflectionTestUtils.setField(dbService, "sourceTopic", consumerTopic + "-recreated");
+    try {
+      assertEquals(0, dbService.loadEvents(List.of(added, updated, deleted)).getDuplicates());
+    } finally {
+      ReflectionTestUtils.setField(dbService, "sourceTopic", consumerTopic);
+    }
+
+    ReflectionTestUtils.setField(dbService, "idempotentWrites", false);
+  }
+
+  /**
+   * Concurrent events of the same measurement (e.g. received on different partitions by
+   * several consumer threads) are written one after the other and leave one current record
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testConcurrentEvents() throws Exception {
+
+    if (!enableTest) {
+      return;
+    }
+
+    stateCache.clear();
+    List<List<EventModel>> polls = concurrentUpdates(List.of(dt1DayAgoString));
+
+    writeConcurrently(polls, updates -> updates.forEach(dbService::updateMeasurementFromEvent));
+
+    assertOneCurrent(dt1DayAgo, polls);
+  }
+
+  /**
+   * In the virtual thread mode the polls of concurrent consumer threads are dispatched by measurement
+   * at the same time, the events of a measurement are still written one after the other
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testConcurrentDispatchByMeasurement() throws Exception {
+
+    if (!enableTest) {
+      return;
+    }
+
+    stateCache.clear();
+    List<List<EventModel>> polls = concurrentUpdates(List.of(dt1DayAgoString, dt10MinAgoString));
+
+    writeConcurrently(polls, poll -> laneDispatcher.dispatchByMeasurement(poll,
+        dbService::updateMeasurementFromEvent));
+
+    assertOneCurrent(dt1DayAgo, polls);
+    assertOneCurrent(dt10MinAgo, polls);
+  }
+
+  /**
+   * Adds the given measurements (measurement times) and returns the updates of all of them
+   * for 4 threads, each thread's events in increasing timestamp order.
+   * The threads' timestamps are interleaved, so they keep writing over each other.
+   *
+   * @param measurementDateTimes
+   * @return the events of each thread
+   * @throws SQLException
+   */
+  private List<List<EventModel>> concurrentUpdates(List<String> measurementDateTimes) throws SQLException {
+    int threads = 4;
+    int eventsPerThread = 50;
+
+    event.setEventType(VandaHEventProcessor.EVENT_MEASUREMENT_ADDED);
+    event.setResult(resultA);
+    event.setRecordDateTime(dt1DayAgo);
+    for (String measurementDateTime : measurementDateTimes) {
+      event.setMeasurementDateTime(measurementDateTime);
+      assertNotNull(dbService.addMeasurementFromEvent(new EventModel(event)));
+    }
+
+    event.setEventType(VandaHEventProcessor.EVENT_MEASUREMENT_UPDATED);
+    List<List<EventModel>> polls = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      List<EventModel> updates = new ArrayList<>();
+      for (int i = 0; i < eventsPerThread; i++) {
+        for (String measurementDateTime : measurementDateTimes) {
+          event.setMeasurementDateTime(measurementDateTime);
+          event.setResult((double) (i * threads + t));
+          event.setRecordDateTime(dt10MinAgo.plusSeconds(i * threads + t));
+          updates.add(new EventModel(event));
+        }
+      }
+      polls.add(updates);
+    }
+    event.setMeasurementDateTime(dt1DayAgoString);
+    return polls;
+  }
+
+  /**
+   * Runs the writer on every list of events on its own thread, all starting at the same time
+   *
+   * @param polls
+   * @param writer
+   * @throws Exception
+   */
+  private void writeConcurrently(List<List<EventModel>> polls, Consumer<List<EventModel>> writer)
+      throws Exception {
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(polls.size());
+    try {
+      List<Future<?>> results = new ArrayList<>();
+      for (List<EventModel> poll : polls) {
+        results.add(executor.submit(() -> {
+          start.await();
+          writer.accept(poll);
+          return null;
+        }));
+      }
+      start.countDown();
+      for (Future<?> result : results) {
+        result.get(60, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Checks that the measurement has one current record, from the newest of the events
+   *
+   * @param measurementDateTime
+   * @param polls
+   */
+  private void assertOneCurrent(OffsetDateTime measurementDateTime, List<List<EventModel>> polls) {
+    List<Measurement> history = dbService.getMeasurementHistory(stationId, measurementPoint1,
+        mtExamTypeSc1, measurementDateTime);
+    assertEquals(1, history.stream().filter(Measurement::getIsCurrent).count());
+
+    //the newest update is current, whatever the order in which the threads wrote
+    OffsetDateTime newest = polls.stream().flatMap(List::stream)
+        .map(EventModel::getRecordDateTime).max(OffsetDateTime::compareTo).orElseThrow();
+    Measurement current = dbService.getMeasurement(stationId, measurementPoint1, mtExamTypeSc1,
+        measurementDateTime);
+    assertEquals(newest, current.getVandaEventTimestamp());
+  }
 }
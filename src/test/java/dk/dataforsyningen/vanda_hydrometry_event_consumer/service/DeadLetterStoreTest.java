@@ -0,0 +1,123 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper.EventModelDeserializer;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.DeadLetter;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.jdbi.v3.core.statement.UnableToExecuteStatementException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class DeadLetterStoreTest {
+
+  private final String topic = "measurements";
+
+  @TempDir
+  private Path tempDir;
+
+  @Test
+  public void testDeadLetterStore() throws IOException {
+    DeadLetterStore store = new DeadLetterStore(tempDir, 1, topic);  //one message per segment
+
+    // an undecodable message is kept with its raw bytes, as given by EventModelDeserializer
+    String invalidMessage = "{\"EventType\":\"MeasurementAdded\",\"ExaminationTypeSc\":25,\"MeasurementPointNumber\":\"x\"}";
+    RecordHeaders headers = new RecordHeaders();
+    headers.add(EventModelDeserializer.DECODE_ERROR_HEADER,
+        IllegalArgumentException.class.getName().getBytes(StandardCharsets.UTF_8));
+    headers.add(EventModelDeserializer.RAW_VALUE_HEADER, invalidMessage.getBytes(StandardCharsets.UTF_8));
+    store.add(new ConsumerRecord<String, EventModel>(topic, 1, 7, 1000L, TimestampType.CREATE_TIME, 0, 0, null,
+        null, headers, Optional.empty()), null);
+
+    // an event failing with a permanent error is encoded again
+    UnableToExecuteStatementException invalid =
+        new UnableToExecuteStatementException(new SQLException("foreign key violation", "23503"), null);
+    EventModel e = event(9);
+    store.add(e, invalid);
+    store.add(e, invalid);
+
+    List<Path> segments = store.listSegments();
+    assertEquals(3, segments.size());
+    DeadLetter deadLetter = store.read(segments.getFirst()).getFirst();
+    assertEquals(topic, deadLetter.getTopic());
+    assertEquals(7, deadLetter.getOffset());
+    assertEquals(1000L, deadLetter.getTimestamp());
+    assertEquals(IllegalArgumentException.class.getName(), deadLetter.getErrorClass());
+    assertEquals(invalidMessage, new String(deadLetter.getValue(), StandardCharsets.UTF_8));
+    deadLetter = store.read(segments.get(1)).getFirst();
+    assertEquals(UnableToExecuteStatementException.class.getName(), deadLetter.getErrorClass());
+    assertEquals(9, deadLetter.getOffset());
+    assertEquals(e, withPosition(decode(deadLetter.getValue()), e));
+
+    // a record cut short by a crash is skipped
+    Files.write(segments.get(2), new byte[] {0, 0, 1, 0, 1}, StandardOpenOption.APPEND);
+    assertEquals(1, store.read(segments.get(2)).size());
+
+    List<DeadLetter> replayed = new ArrayList<>();
+    assertEquals(3, store.replay(500, replayed::addAll));
+    assertEquals(3, replayed.size());
+    assertEquals(List.of(7L, 9L, 9L), replayed.stream().map(DeadLetter::getOffset).toList());
+    assertTrue(store.listSegments().isEmpty());
+    assertEquals(0, store.replay(500, replayed::addAll));
+
+    // the events of a batch are added together, in one segment if it is large enough
+    store = new DeadLetterStore(tempDir.resolve("batch"), 1024 * 1024, topic);
+    store.add(List.of(event(10), event(11), event(12)), invalid);
+    segments = store.listSegments();
+    assertEquals(1, segments.size());
+    assertEquals(List.of(10L, 11L, 12L),
+        store.read(segments.getFirst()).stream().map(DeadLetter::getOffset).toList());
+
+    // disabled
+    store = new DeadLetterStore(null, 1, topic);
+    store.add(e, invalid);
+    assertTrue(store.listSegments().isEmpty());
+    assertEquals(0, store.replay(500, replayed::addAll));
+  }
+
+  private static EventModel event(long offset) {
+    EventModel event = new EventModel();
+    event.setEventType(VandaHEventProcessor.EVENT_MEASUREMENT_ADDED);
+    event.setStationId("12345678");
+    event.setOperatorStationId("WATSONC-773");
+    event.setMeasurementPointNumber(1);
+    event.setUnitSc(19);
+    event.setParameterSc(1233);
+    event.setExaminationTypeSc(25);
+    event.setMeasurementDateTime("2024-10-04T23:50:00.00Z");
+    event.setResult(1376.9);
+    event.setReasonCodeSc(5);
+    event.setPartition(1);
+    event.setOffset(offset);
+    event.setRecordDateTime(OffsetDateTime.parse("1969-12-31T23:59:59.999Z"));
+    return event;
+  }
+
+  private static EventModel decode(byte[] message) throws IOException {
+    ObjectReader eventReader = new ObjectMapper().readerFor(EventModel.class);
+    return eventReader.readValue(message);
+  }
+
+  private static EventModel withPosition(EventModel decoded, EventModel event) {
+    decoded.setPartition(event.getPartition());
+    decoded.setOffset(event.getOffset());
+    decoded.setRecordDateTime(event.getRecordDateTime());
+    return decoded;
+  }
+}
@@ -0,0 +1,70 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class EventCoalescerTest {
+
+  @Test
+  public void testEventCoalescer() {
+
+    EventCoalescer coalescer = new EventCoalescer(10_000, 2);
+    OffsetDateTime t = OffsetDateTime.parse("2024-10-04T23:50:00.00Z");
+
+    List<EventModel> events = new ArrayList<>();
+    String[][] received = {
+        // station, event type, seconds after t
+        {"s1", VandaHEventProcessor.EVENT_MEASUREMENT_ADDED, "0"},
+        {"s1", VandaHEventProcessor.EVENT_MEASUREMENT_UPDATED, "2"},
+        {"s2", VandaHEventProcessor.EVENT_MEASUREMENT_UPDATED, "3"},
+        {"s1", VandaHEventProcessor.EVENT_MEASUREMENT_UPDATED, "4"},  //s1: 3 -> 1 added
+        {"s2", VandaHEventProcessor.EVENT_MEASUREMENT_UPDATED, "5"},
+        {"s2", VandaHEventProcessor.EVENT_MEASUREMENT_DELETED, "6"},  //s2: 2 -> 1 updated, deleted
+        {"s3", VandaHEventProcessor.EVENT_MEASUREMENT_UPDATED, "7"},
+        {"s3", VandaHEventProcessor.EVENT_MEASUREMENT_UPDATED, "20"},  //s3: outside the window
+        {"s4", VandaHEventProcessor.EVENT_MEASUREMENT_UPDATED, "21"},
+        {"s5", VandaHEventProcessor.EVENT_MEASUREMENT_UPDATED, "22"},  //s1 closed, max 2 open
+    };
+    for (int i = 0; i < received.length; i++) {
+      EventModel e = new EventModel();
+      e.setStationId(received[i][0]);
+      e.setMeasurementPointNumber(1);
+      e.setExaminationTypeSc(25);
+      e.setMeasurementDateTime("2024-10-04T23:50:00.00Z");
+      e.setEventType(received[i][1]);
+      e.setRecordDateTime(t.plusSeconds(Long.parseLong(received[i][2])));
+      e.setPartition(1);
+      e.setOffset(i);
+      events.add(e);
+    }
+
+    List<EventModel> coalesced = coalescer.coalesce(events);
+
+    assertEquals(List.of(3L, 4L, 5L, 6L, 7L, 8L, 9L),
+        coalesced.stream().map(EventModel::getOffset).sorted().toList());
+    assertEquals(VandaHEventProcessor.EVENT_MEASUREMENT_ADDED, coalesced.stream()
+        .filter(e -> e.getOffset() == 3).findFirst().map(EventModel::getEventType).orElse(null));
+    // the events of a measurement stay in order
+    assertTrue(coalesced.indexOf(events.get(4)) < coalesced.indexOf(events.get(5)));
+    assertTrue(coalesced.indexOf(events.get(6)) < coalesced.indexOf(events.get(7)));
+    assertEquals(3, coalescer.getCoalescedCount());
+
+    // an event that does not identify its measurement is kept as it is
+    EventModel noKey = new EventModel();
+    noKey.setEventType(VandaHEventProcessor.EVENT_MEASUREMENT_UPDATED);
+    noKey.setRecordDateTime(t);
+    coalesced = new EventCoalescer(10_000, 2).coalesce(List.of(events.get(0), noKey, events.get(1)));
+    assertEquals(2, coalesced.size());
+    assertSame(noKey, coalesced.getFirst());
+
+    // disabled
+    assertSame(events, new EventCoalescer(0, 2).coalesce(events));
+  }
+}
@@ -0,0 +1,123 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class EventLaneDispatcherTest {
+
+  private static final int STATIONS = 20;
+  private static final int EVENTS = 200;
+
+  @Test
+  public void testLaneDispatcher() {
+
+    EventLaneDispatcher dispatcher = new EventLaneDispatcher(4, 1);
+    List<EventModel> events = events();
+
+    ConcurrentHashMap<String, List<Long>> offsetsByStation = new ConcurrentHashMap<>();
+    Set<String> threads = ConcurrentHashMap.newKeySet();
+    dispatcher.dispatch(events, laneEvents -> {
+      threads.add(Thread.currentThread().getName());
+      for (EventModel e : laneEvents) {
+        assertEquals(dispatcher.laneOf(laneEvents.get(0)), dispatcher.laneOf(e));
+        offsetsByStation.computeIfAbsent(e.getStationId(), k -> new ArrayList<>()).add(e.getOffset());
+      }
+    });
+    dispatcher.shutdown();
+
+    // all events processed, each measurement in the received order
+    assertReceivedOrder(offsetsByStation);
+    assertTrue(threads.size() > 1);
+  }
+
+  @Test
+  public void testDispatchByMeasurement() {
+
+    EventLaneDispatcher dispatcher = new EventLaneDispatcher(1, 3);
+    List<EventModel> events = events();
+
+    ConcurrentHashMap<String, List<Long>> offsetsByStation = new ConcurrentHashMap<>();
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    dispatcher.dispatchByMeasurement(events, e -> {
+      maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+      assertTrue(Thread.currentThread().isVirtual());
+      offsetsByStation.computeIfAbsent(e.getStationId(), k -> new ArrayList<>()).add(e.getOffset());
+      Thread.yield();
+      running.decrementAndGet();
+    });
+    dispatcher.shutdown();
+
+    // all events processed, each measurement in the received order, at most 3 at a time
+    assertReceivedOrder(offsetsByStation);
+    assertTrue(maxRunning.get() <= 3);
+  }
+
+  @Test
+  public void testDispatchByPartition() {
+
+    EventLaneDispatcher dispatcher = new EventLaneDispatcher(2, 1);
+    List<EventModel> events = events();
+    events.forEach(e -> e.setPartition((int) (e.getOffset() % 4)));
+
+    // each partition is saved by one lane, in the received order
+    Map<Integer, Set<Integer>> partitionLanes = new ConcurrentHashMap<>();
+    Map<Integer, List<Long>> offsetsByPartition = new ConcurrentHashMap<>();
+    dispatcher.dispatchByPartition(events, laneEvents -> {
+      for (EventModel e : laneEvents) {
+        partitionLanes.computeIfAbsent(e.getPartition(), p -> ConcurrentHashMap.newKeySet())
+            .add(System.identityHashCode(laneEvents));
+        offsetsByPartition.computeIfAbsent(e.getPartition(), p -> new ArrayList<>()).add(e.getOffset());
+      }
+    });
+    dispatcher.shutdown();
+    assertEquals(4, partitionLanes.size());
+    partitionLanes.values().forEach(lanes -> assertEquals(1, lanes.size()));
+    offsetsByPartition.forEach((partition, offsets) -> assertEquals(
+        events.stream().filter(e -> e.getPartition() == partition).map(EventModel::getOffset).toList(), offsets));
+  }
+
+  /**
+   * Returns the events of 20 measurements (one per station), 10 each, one after the other
+   *
+   * @return events with their offset in the list
+   */
+  private static List<EventModel> events() {
+    List<EventModel> events = new ArrayList<>();
+    for (int i = 0; i < EVENTS; i++) {
+      EventModel e = new EventModel();
+      e.setStationId("station" + (i % STATIONS));
+      e.setMeasurementPointNumber(1);
+      e.setExaminationTypeSc(25);
+      e.setMeasurementDateTime("2024-10-04T23:50:00.00Z");
+      e.setPartition(1);
+      e.setOffset(i);
+      events.add(e);
+    }
+    return events;
+  }
+
+  /**
+   * Checks that all the events were processed, the events of each measurement in the received order
+   *
+   * @param offsetsByStation the processed offsets of each station, in the processed order
+   */
+  private static void assertReceivedOrder(Map<String, List<Long>> offsetsByStation) {
+    assertEquals(STATIONS, offsetsByStation.size());
+    offsetsByStation.values().forEach(offsets -> {
+      assertEquals(EVENTS / STATIONS, offsets.size());
+      for (int i = 1; i < offsets.size(); i++) {
+        assertEquals(offsets.get(i - 1) + STATIONS, offsets.get(i));
+      }
+    });
+  }
+}
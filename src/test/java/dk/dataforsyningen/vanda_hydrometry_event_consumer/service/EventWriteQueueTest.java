@@ -0,0 +1,113 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
+import java.sql.SQLTransientConnectionException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.transaction.CannotCreateTransactionException;
+
+public class EventWriteQueueTest {
+
+  @Test
+  public void testWriteQueue() throws InterruptedException {
+    MessageListenerContainer container = mock(MessageListenerContainer.class);
+    CountDownLatch stall = new CountDownLatch(1);
+    List<Long> written = new CopyOnWriteArrayList<>();
+    List<Integer> acknowledged = new CopyOnWriteArrayList<>();
+    EventWriteQueue queue = new EventWriteQueue(10, 4, 1, 2);
+    queue.start(container, events -> {
+      try {
+        stall.await();
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+      events.forEach(e -> written.add(e.getOffset()));
+    });
+    try {
+      // the writer is stalled with at most 2 records, the queue reaches the high watermark
+      for (int i = 0; i < 6; i++) {
+        EventModel e = null;
+        if (i != 2) {
+          e = new EventModel();
+          e.setOffset(i);
+        }
+        int n = i;
+        queue.put(e, () -> acknowledged.add(n));
+      }
+      verify(container).pause();
+      assertTrue(queue.isPaused());
+      assertTrue(acknowledged.isEmpty());
+
+      // resumed once the queue is down to the low watermark, the records acknowledged in order
+      stall.countDown();
+      verify(container, timeout(5000)).resume();
+      for (int i = 0; i < 100 && acknowledged.size() < 6; i++) {
+        Thread.sleep(50);
+      }
+      assertEquals(List.of(0, 1, 2, 3, 4, 5), acknowledged);
+      assertEquals(List.of(0L, 1L, 3L, 4L, 5L), written);
+      assertFalse(queue.isPaused());
+      assertEquals(0, queue.size());
+      verify(container).pause();
+    } finally {
+      queue.shutdown();
+    }
+  }
+
+  @Test
+  public void testWriteErrors() throws InterruptedException {
+    MessageListenerContainer container = mock(MessageListenerContainer.class);
+    AtomicInteger writes = new AtomicInteger();
+    List<Integer> acknowledged = new CopyOnWriteArrayList<>();
+    EventWriteQueue queue = new EventWriteQueue(10, 10, 1, 10);
+    // queued before the writer starts, so they are written in one batch
+    for (int i = 0; i < 3; i++) {
+      EventModel e = new EventModel();
+      e.setOffset(i);
+      int n = i;
+      queue.put(e, () -> acknowledged.add(n));
+    }
+    queue.start(container, events -> {
+      int write = writes.incrementAndGet();
+      if (write == 1) {
+        throw new CannotCreateTransactionException("No connection",
+            new SQLTransientConnectionException("Connection is not available"));
+      }
+      if (write == 2) {
+        throw new IllegalStateException("invalid event");
+      }
+    });
+    try {
+      // a transient error is retried, another error skips the batch instead of retrying it forever
+      for (int i = 0; i < 100 && acknowledged.size() < 3; i++) {
+        Thread.sleep(50);
+      }
+      assertEquals(List.of(0, 1, 2), acknowledged);
+      assertEquals(2, writes.get());
+      assertEquals(0, queue.size());
+
+      // the queue goes on with the next records
+      EventModel e = new EventModel();
+      e.setOffset(3);
+      queue.put(e, () -> acknowledged.add(3));
+      for (int i = 0; i < 100 && acknowledged.size() < 4; i++) {
+        Thread.sleep(50);
+      }
+      assertEquals(List.of(0, 1, 2, 3), acknowledged);
+      assertEquals(3, writes.get());
+    } finally {
+      queue.shutdown();
+    }
+  }
+}
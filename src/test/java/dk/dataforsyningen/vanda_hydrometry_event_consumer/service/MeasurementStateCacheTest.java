@@ -0,0 +1,74 @@
+package dk.dataforsyningen.vanda_hydrometry_event_consumer.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementKey;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementState;
+import java.time.OffsetDateTime;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+public class MeasurementStateCacheTest {
+
+  private final String dateTime = "2024-10-04T23:50:00.00Z";
+
+  @Test
+  public void testMeasurementStateCache() {
+
+    MeasurementStateCache cache = new MeasurementStateCache(2);
+    OffsetDateTime t1 = OffsetDateTime.parse(dateTime);
+    OffsetDateTime t2 = t1.plusMinutes(5);
+
+    MeasurementKey key1 = key("12345678");
+    MeasurementKey key2 = key("other");
+    MeasurementKey key3 = key("another");
+
+    MeasurementState state = new MeasurementState();
+    state.register(t2, true);
+    cache.putAfterCommit(Map.of(key1, state));  //no transaction, cached now
+    state.register(t2.plusMinutes(5), false);  //the cache has its own copy
+    assertEquals(t2, cache.get(key1).getLatestTimestamp());
+    assertTrue(cache.get(key1).isDelayed(t1));
+
+    //an older state does not replace a newer one
+    MeasurementState older = new MeasurementState();
+    older.register(t1, false);
+    cache.put(key1, older);
+    assertEquals(t2, cache.get(key1).getLatestTimestamp());
+    assertTrue(cache.get(key1).getIsCurrent());
+
+    //the least recently used is evicted
+    cache.put(key2, older);
+    cache.get(key1);
+    cache.put(key3, older);
+    assertEquals(2, cache.size());
+    assertNull(cache.get(key2));
+    assertNotNull(cache.get(key1));
+
+    cache.invalidate(key1);
+    assertNull(cache.get(key1));
+
+    assertEquals(6, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals("state cache hits/misses: 6/2 (size 1/2)", cache.report(6, 2));
+
+    //disabled
+    MeasurementStateCache disabled = new MeasurementStateCache(0);
+    disabled.put(key1, state);
+    assertNull(disabled.get(key1));
+    assertEquals(0, disabled.size());
+  }
+
+  private MeasurementKey key(String stationId) {
+    EventModel event = new EventModel();
+    event.setStationId(stationId);
+    event.setMeasurementPointNumber(1);
+    event.setExaminationTypeSc(25);
+    event.setMeasurementDateTime(dateTime);
+    return MeasurementKey.of(event);
+  }
+}
@@ -1,24 +1,86 @@
 package dk.dataforsyningen.vanda_hydrometry_event_consumer.service;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.DataSourcePoolStatistics;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.EventFilter;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.EventFilterHolder;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.LogSqlFactory;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.SqlStatementMetrics;
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.config.VandaHEventConsumerConfig;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.dao.MeasurementDao;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper.EventMessageEncoder;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.mapper.EventModelDeserializer;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.DeadLetter;
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementKey;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
 import java.time.OffsetDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import javax.sql.DataSource;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.jdbi.v3.core.extension.ExtensionMethod;
+import org.jdbi.v3.core.statement.SqlStatement;
+import org.jdbi.v3.core.statement.StatementContext;
+import org.jdbi.v3.core.statement.UnableToExecuteStatementException;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatcher;
 import org.mockito.InjectMocks;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.listener.ConsumerSeekAware;
+import org.springframework.kafka.listener.ContainerProperties;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.CannotCreateTransactionException;
 
 @SpringBootTest
 public class VandaHEventProcessorTest {
@@ -36,10 +98,10 @@ public class VandaHEventProcessorTest {
   private final String dateTime = "2024-10-04T23:50:00.00Z";
   private final String recordDateTime = "1969-12-31T23:59:59.999Z";
   private final List<Integer> examinationTypes = List.of(25, 27);
-  ConsumerRecord<String, String> recordAdd;
-  ConsumerRecord<String, String> recordUpdate;
-  ConsumerRecord<String, String> recordDelete;
-  ConsumerRecord<String, String> recordIrrelevant;
+  ConsumerRecord<String, EventModel> recordAdd;
+  ConsumerRecord<String, EventModel> recordUpdate;
+  ConsumerRecord<String, EventModel> recordDelete;
+  ConsumerRecord<String, EventModel> recordIrrelevant;
   EventModel event;
   private final String topic = "measurements";
   private final String measurementAdded =
@@ -56,10 +118,49 @@ public class VandaHEventProcessorTest {
   @MockBean
   private VandaHEventConsumerConfig config;
 
+  @MockBean
+  private OffsetStore offsetStore;
+
+  @MockBean
+  private DeadLetterStore deadLetterStore;
+
   @InjectMocks
   @Autowired
   private VandaHEventProcessor processor;
 
+  @Autowired
+  private EventModelDeserializer deserializer;
+
+  @Autowired
+  private EventFilterHolder eventFilter;
+
+  @Autowired
+  private DefaultKafkaConsumerFactory<?, ?> consumerFactory;
+
+  @Autowired
+  private ConcurrentKafkaListenerContainerFactory<?, ?> containerFactory;
+
+  @Autowired
+  private KafkaListenerEndpointRegistry kafkaListenerEndpointRegistry;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  @Autowired
+  private ConsumerMetrics metrics;
+
+  @Autowired
+  private SqlStatementMetrics sqlStatementMetrics;
+
+  @Autowired
+  private DataSourcePoolStatistics poolStatistics;
+
+  @Autowired
+  private MeasurementStateCache stateCache;
+
+  @Autowired
+  private DataSource dataSource;
+
   @BeforeEach
   public void setup() {
     when(config.isSaveDb()).thenReturn(true);
@@ -67,11 +168,12 @@ public class VandaHEventProcessorTest {
     when(config.processAdditions()).thenReturn(true);
     when(config.processUpdates()).thenReturn(true);
     when(config.processDeletions()).thenReturn(true);
+    eventFilter.reload();
 
-    recordAdd = new ConsumerRecord<>(topic, 1, 0, null, measurementAdded);
-    recordUpdate = new ConsumerRecord<>(topic, 1, 0, null, measurementUpdated);
-    recordDelete = new ConsumerRecord<>(topic, 1, 0, null, measurementDeleted);
-    recordIrrelevant = new ConsumerRecord<>(topic, 1, 0, null, irrelevantMeasurement);
+    recordAdd = new ConsumerRecord<>(topic, 1, 0, null, deserialize(measurementAdded));
+    recordUpdate = new ConsumerRecord<>(topic, 1, 0, null, deserialize(measurementUpdated));
+    recordDelete = new ConsumerRecord<>(topic, 1, 0, null, deserialize(measurementDeleted));
+    recordIrrelevant = new ConsumerRecord<>(topic, 1, 0, null, deserialize(irrelevantMeasurement));
 
     event = new EventModel();
 
@@ -88,6 +190,124 @@ public class VandaHEventProcessorTest {
 
   }
 
+  private EventModel deserialize(String message) {
+    return deserializer.deserialize(topic, null, ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  public void testDeserializer() {
+
+    assertSame(deserializer, consumerFactory.getValueDeserializer());
+
+    event.setEventType(VandaHEventProcessor.EVENT_MEASUREMENT_ADDED);
+    event.setLoggerId(loggerId);
+    event.setResult(result1);
+    event.setPartition(0);
+    event.setRecordDateTime(null);
+
+    assertEquals(event, deserialize(measurementAdded));
+
+    // the message is decoded from its position in the buffer
+    ByteBuffer buffer = ByteBuffer.wrap(("xyz" + measurementAdded).getBytes(StandardCharsets.UTF_8));
+    buffer.position(3);
+    assertEquals(event, deserializer.deserialize(topic, null, buffer.slice()));
+
+    assertNull(deserialize("{\"EventType\":"));
+    assertNull(deserializer.deserialize(topic, (byte[]) null));
+  }
+
+  @Test
+  public void testPreScan() {
+
+    long rejected = deserializer.getRejectedCount();
+
+    assertNull(deserialize(irrelevantMeasurement));
+    assertEquals(++rejected, deserializer.getRejectedCount());
+
+    // the examination type is read also when it comes after nested values
+    assertNull(deserialize(
+        "{\"Extra\":{\"ExaminationTypeSc\":25},\"EventType\":\"MeasurementAdded\",\"ExaminationTypeSc\":29}"));
+    assertEquals(++rejected, deserializer.getRejectedCount());
+
+    when(config.processUpdates()).thenReturn(false);
+    eventFilter.reload();
+
+    assertNull(deserialize(measurementUpdated));
+    assertNotNull(deserialize(measurementAdded));
+    assertNotNull(deserialize(measurementDeleted));
+    assertEquals(++rejected, deserializer.getRejectedCount());
+  }
+
+  @Test
+  public void testReplaceFilter() throws SQLException {
+
+    eventFilter.reload(" 29 ,x", "a");
+
+    assertNull(deserialize(measurementAdded));
+    assertNull(deserialize(measurementDeleted));
+
+    processor.consume(new ConsumerRecord<>(topic, 1, 0, null, deserialize(irrelevantMeasurement)));
+
+    verify(dbService).addMeasurementFromEvent(argThat(e -> e.getExaminationTypeSc() == 29));
+
+    eventFilter.reload("", "");
+
+    assertNotNull(deserialize(measurementAdded));
+    assertNotNull(deserialize(measurementDeleted));
+
+    assertEquals(examinationTypes, EventFilter.parseExaminationTypes("25, 27 ,x"));
+  }
+
+  @Test
+  public void testConcurrentConsume() throws Exception {
+
+    when(config.getReportPeriodSec()).thenReturn(1);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<?>> consumers = new ArrayList<>();
+    for (int partition = 0; partition < 4; partition++) {
+      int p = partition;
+      consumers.add(executor.submit(() -> {
+        for (int offset = 0; offset < 100; offset++) {
+          processor.consume(new ConsumerRecord<>(topic, p, offset, null, deserialize(measurementAdded)));
+        }
+      }));
+    }
+    for (Future<?> consumer : consumers) {
+      consumer.get();
+    }
+    executor.shutdown();
+
+    verify(dbService, times(400)).addMeasurementFromEvent(any());
+  }
+
+  @Test
+  public void testUndecodedMessage() throws SQLException {
+
+    processor.consume(new ConsumerRecord<>(topic, 1, 0, null, null));
+    processor.consumeBatch(List.of(new ConsumerRecord<>(topic, 1, 1, null, null), recordAdd));
+
+    verify(dbService, never()).addMeasurementFromEvent(any());
+    verify(dbService).processEvents(argThat(events -> events.size() == 1));
+  }
+
+  @Test
+  public void testEventWithoutMeasurementKey() throws SQLException {
+
+    // an event that does not identify its measurement is skipped on its own, the rest of the poll is saved
+    EventModel noDateTime = deserialize(measurementAdded.replace(",\"MeasurementDateTime\":\"" + dateTime + "\"", ""));
+    assertFalse(noDateTime.hasMeasurementKey());
+    ConsumerRecord<String, EventModel> invalidRecord = new ConsumerRecord<>(topic, 1, 1, null, noDateTime);
+    processor.consumeBatch(List.of(invalidRecord, recordAdd));
+
+    verify(dbService).processEvents(argThat(events -> events.size() == 1 && events.getFirst() == recordAdd.value()));
+    verify(deadLetterStore).add(eq(invalidRecord), any(IllegalArgumentException.class));
+
+    processor.consume(invalidRecord);
+    verify(deadLetterStore, times(2)).add(eq(invalidRecord), any(IllegalArgumentException.class));
+    verify(dbService, never()).addMeasurementFromEvent(any());
+  }
+
   @Test
   public void testSkipMeasurement() throws SQLException {
 
@@ -144,4 +364,255 @@ public class VandaHEventProcessorTest {
     }));
   }
 
+  @Test
+  public void testBatch() throws SQLException {
+
+    processor.consumeBatch(List.of(recordAdd, recordIrrelevant, recordUpdate, recordDelete));
+
+    verify(dbService).processEvents(argThat(new ArgumentMatcher<List<EventModel>>() {
+
+      @Override
+      public boolean matches(List<EventModel> events) {
+        return events.size() == 3 &&
+            VandaHEventProcessor.EVENT_MEASUREMENT_ADDED.equals(events.get(0).getEventType()) &&
+            VandaHEventProcessor.EVENT_MEASUREMENT_UPDATED.equals(events.get(1).getEventType()) &&
+            VandaHEventProcessor.EVENT_MEASUREMENT_DELETED.equals(events.get(2).getEventType());
+      }
+
+    }));
+    verify(dbService, never()).addMeasurementFromEvent(any());
+  }
+
+  @Test
+  public void testSaveErrors() throws SQLException {
+
+    ContainerProperties containerProperties = containerFactory.getContainerProperties();
+    assertEquals(ContainerProperties.AckMode.COUNT_TIME, containerProperties.getAckMode());
+    assertFalse(consumerFactory.isAutoCommit());
+
+    SQLTransientConnectionException unavailable = new SQLTransientConnectionException("Connection is not available");
+    assertTrue(DatabaseService.isTransientError(new CannotCreateTransactionException("No connection", unavailable)));
+    assertTrue(DatabaseService.isTransientError(new SQLException("deadlock detected", "40P01")));
+    assertFalse(DatabaseService.isTransientError(new SQLException("foreign key violation", "23503")));
+    assertFalse(DatabaseService.isTransientError(new IllegalStateException()));
+
+    // transient errors are rethrown, so the offsets are not committed and the events are retried
+    when(dbService.addMeasurementFromEvent(any())).thenThrow(new CannotCreateTransactionException("No connection", unavailable));
+    assertThrows(CannotCreateTransactionException.class, () -> processor.consume(recordAdd));
+
+    when(dbService.processEvents(any())).thenThrow(new CannotCreateTransactionException("No connection", unavailable));
+    assertThrows(CannotCreateTransactionException.class,
+        () -> processor.consumeBatch(List.of(recordAdd, recordUpdate)));
+
+    // other errors skip the failing events only
+    UnableToExecuteStatementException invalid =
+        new UnableToExecuteStatementException(new SQLException("foreign key violation", "23503"), null);
+    reset(dbService);
+    when(dbService.processEvents(any())).thenThrow(invalid);
+    when(dbService.addMeasurementFromEvent(any())).thenThrow(invalid);
+
+    processor.consume(recordAdd);
+    processor.consumeBatch(List.of(recordAdd, recordUpdate));
+
+    verify(dbService, times(2)).addMeasurementFromEvent(any());
+    verify(dbService).updateMeasurementFromEvent(any());
+  }
+
+  @Test
+  public void testOffsetStore() throws SQLException {
+
+    when(offsetStore.isEnabled()).thenReturn(true);
+
+    // the offset is stored with the event, in one transaction
+    processor.consume(recordAdd);
+    verify(dbService).processEvents(argThat(events -> events.size() == 1));
+    verify(dbService, never()).addMeasurementFromEvent(any());
+
+    // the consumer moves forward to the stored offsets only
+    when(offsetStore.read(topic)).thenReturn(Map.of(1, 10L));
+    ConsumerSeekAware.ConsumerSeekCallback callback = mock(ConsumerSeekAware.ConsumerSeekCallback.class);
+    processor.onPartitionsAssigned(Map.of(new TopicPartition(topic, 1), 5L, new TopicPartition(topic, 2), 0L),
+        callback);
+
+    ArgumentCaptor<Function<Long, Long>> seek = ArgumentCaptor.captor();
+    verify(callback).seek(eq(topic), eq(1), seek.capture());
+    verify(callback, never()).seek(eq(topic), eq(2), any(Function.class));
+    assertEquals(10L, seek.getValue().apply(5L));
+    assertEquals(20L, seek.getValue().apply(20L));
+  }
+
+  @Test
+  public void testDeadLetterStore() throws SQLException {
+
+    // an undecodable message is kept with its raw bytes
+    String invalidMessage = "{\"EventType\":\"MeasurementAdded\",\"ExaminationTypeSc\":25,\"MeasurementPointNumber\":\"x\"}";
+    RecordHeaders headers = new RecordHeaders();
+    assertNull(deserializer.deserialize(topic, headers, ByteBuffer.wrap(invalidMessage.getBytes(StandardCharsets.UTF_8))));
+    ConsumerRecord<String, EventModel> invalidRecord = new ConsumerRecord<>(topic, 1, 7, 1000L,
+        TimestampType.CREATE_TIME, 0, 0, null, null, headers, Optional.empty());
+    processor.consume(invalidRecord);
+    verify(deadLetterStore).add(invalidRecord, null);
+
+    // a rejected message is not
+    processor.consume(new ConsumerRecord<>(topic, 1, 8, null, null));
+    verify(deadLetterStore, times(1)).add(any(ConsumerRecord.class), any());
+
+    // an event failing with a permanent error
+    UnableToExecuteStatementException invalid =
+        new UnableToExecuteStatementException(new SQLException("foreign key violation", "23503"), null);
+    when(dbService.addMeasurementFromEvent(any())).thenThrow(invalid);
+    processor.consume(recordAdd);
+    verify(deadLetterStore).add(recordAdd, invalid);
+
+    // the replay command saves the decoded events with their position
+    EventModel e = new EventModel(event);
+    e.setEventType(VandaHEventProcessor.EVENT_MEASUREMENT_ADDED);
+    e.setResult(result1);
+    e.setOffset(9);
+    List<DeadLetter> replayed = List.of(
+        new DeadLetter(0, topic, 1, 7, 1000L, null, "Message could not be decoded",
+            invalidMessage.getBytes(StandardCharsets.UTF_8)),
+        new DeadLetter(0, topic, 1, 9, 0, invalid.getClass().getName(), invalid.getMessage(),
+            EventMessageEncoder.encode(e)),
+        new DeadLetter(0, topic, 1, 9, 0, invalid.getClass().getName(), invalid.getMessage(),
+            EventMessageEncoder.encode(e)));
+    reset(dbService);
+    doAnswer(invocation -> {
+      Consumer<List<DeadLetter>> handler = invocation.getArgument(1);
+      handler.accept(replayed);
+      return replayed.size();
+    }).when(deadLetterStore).replay(anyInt(), any());
+    when(config.getDeadLetterReplayBatchSize()).thenReturn(500);
+
+    assertEquals(3, processor.replayDeadLetters());
+    verify(dbService).processEvents(argThat(events -> events.size() == 2 && events.getFirst().getOffset() == 9));
+    // the undecodable message is kept
+    verify(deadLetterStore).add(replayed.getFirst());
+  }
+
+  @Test
+  public void testQueuedListenerAckMode() {
+    // the records of the queued listener are acknowledged by the writer
+    assertEquals(ContainerProperties.AckMode.MANUAL, kafkaListenerEndpointRegistry
+        .getListenerContainer(VandaHEventProcessor.QUEUED_LISTENER_ID).getContainerProperties().getAckMode());
+    assertEquals(ContainerProperties.AckMode.COUNT_TIME, kafkaListenerEndpointRegistry
+        .getListenerContainer(VandaHEventProcessor.LISTENER_ID).getContainerProperties().getAckMode());
+  }
+
+  @Test
+  public void testMetrics() throws SQLException, NoSuchMethodException {
+    long received = metrics.getReceivedCount();
+    long added = metrics.getProcessedCount(VandaHEventProcessor.EVENT_MEASUREMENT_ADDED);
+    long aged = meterRegistry.find("vanda.event.age").tag("partition", "1").timers().stream()
+        .mapToLong(Timer::count).sum();
+    double filtered = meterRegistry.get("vanda.events.filtered")
+        .tag("type", VandaHEventProcessor.EVENT_MEASUREMENT_ADDED).counter().count();
+
+    processor.consume(recordAdd);
+    EventModel irrelevant = deserialize(measurementAdded);
+    irrelevant.setExaminationTypeSc(29);
+    processor.consume(new ConsumerRecord<>(topic, 1, 1, null, irrelevant));
+
+    assertEquals(received + 2, metrics.getReceivedCount());
+    assertEquals(added + 1, metrics.getProcessedCount(VandaHEventProcessor.EVENT_MEASUREMENT_ADDED));
+    assertEquals(filtered + 1, meterRegistry.get("vanda.events.filtered")
+        .tag("type", VandaHEventProcessor.EVENT_MEASUREMENT_ADDED).counter().count());
+    // the record timestamp of the test records is 0, before the measurement time
+    Timer eventAge = meterRegistry.get("vanda.event.age").tag("partition", "1").timer();
+    assertEquals(aged + 1, eventAge.count());
+    assertTrue(eventAge.max(TimeUnit.DAYS) > 365);
+    assertEquals(0, meterRegistry.get("vanda.event.delay").tag("partition", "1").timer().max(TimeUnit.MILLISECONDS));
+
+    // the lag is taken from the consumer's position, by the listener containers' interceptors
+    assertNotNull(ReflectionTestUtils.getField(containerFactory, "recordInterceptor"));
+    assertNotNull(ReflectionTestUtils.getField(containerFactory, "batchInterceptor"));
+    assertEquals(-1, metrics.getLag(7));
+    KafkaConsumer<?, ?> consumer = mock(KafkaConsumer.class);
+    TopicPartition partition = new TopicPartition(topic, 7);
+    when(consumer.currentLag(partition)).thenReturn(OptionalLong.of(40));
+    when(consumer.position(partition)).thenReturn(110L);
+    metrics.received(topic, 7, 99, consumer);
+    assertEquals(50, metrics.getLag(7));
+    assertEquals(50, meterRegistry.get("vanda.partition.lag").tag("partition", "7").gauge().value());
+    // the end offset is taken again after a second
+    metrics.received(topic, 7, 119, consumer);
+    assertEquals(30, metrics.getLag(7));
+    verify(consumer, times(1)).position(partition);
+
+    // the statements are timed by DAO method
+    StatementContext context = mock(StatementContext.class);
+    when(context.getExtensionMethod()).thenReturn(new ExtensionMethod(MeasurementDao.class,
+        MeasurementDao.class.getMethod("createStagingTable")));
+    when(context.getElapsedTime(ChronoUnit.NANOS)).thenReturn(2_000_000L);
+    sqlStatementMetrics.logAfterExecution(context);
+    sqlStatementMetrics.logAfterExecution(context);
+    assertEquals(2, meterRegistry.get(SqlStatementMetrics.TIMER_NAME)
+        .tag("statement", "MeasurementDao.createStagingTable").tag("outcome", "success").timer().count());
+
+    // the pool meters are registered by HikariCP and the report shows the connections since the previous one
+    // (the pool gauges are refreshed by HikariCP at most once a second)
+    poolStatistics.report();
+    try (Connection connection = dataSource.getConnection()) {
+      assertTrue(meterRegistry.get("hikaricp.connections.max").gauge().value() > 0);
+    }
+    assertTrue(meterRegistry.get("hikaricp.connections.acquire").timer().count() > 0);
+    String poolReport = poolStatistics.report();
+    assertTrue(poolReport.startsWith("DB pool active/idle/waiting: "), poolReport);
+    assertTrue(poolReport.endsWith(" ms (1 connections)"), poolReport);
+    assertTrue(poolStatistics.report().endsWith(" ms (0 connections)"));
+
+    // the state cache lookups are counted by meters
+    stateCache.get(new MeasurementKey("12345678", 1, 25, OffsetDateTime.parse(recordDateTime).toInstant()));
+    assertEquals(metrics.getStateCacheMissCount(), stateCache.getMissCount());
+    assertEquals(stateCache.getMissCount(),
+        meterRegistry.get("vanda.state_cache.gets").tag("result", "miss").functionCounter().count());
+    assertEquals(stateCache.getHitCount(),
+        meterRegistry.get("vanda.state_cache.gets").tag("result", "hit").functionCounter().count());
+    assertEquals(0, meterRegistry.get("vanda.write_queue.pauses").functionCounter().count());
+  }
+
+  @Test
+  public void testSqlLogging() throws SQLException, NoSuchMethodException {
+    // no statement logger is attached when TRACE is disabled
+    SqlStatement<?> statement = mock(SqlStatement.class);
+    new LogSqlFactory.Factory()
+        .createForType(MeasurementDao.class.getAnnotation(LogSqlFactory.class), MeasurementDao.class)
+        .apply(statement);
+    verify(statement, never()).setSqlLogger(any());
+
+    // the SQL of a statement is only rendered if it is slow
+    when(config.getSlowQueryMs()).thenReturn(100L);
+    SqlStatementMetrics slowQueryLog = new SqlStatementMetrics(new SimpleMeterRegistry(), config);
+    StatementContext context = mock(StatementContext.class);
+    when(context.getExtensionMethod()).thenReturn(new ExtensionMethod(MeasurementDao.class,
+        MeasurementDao.class.getMethod("createStagingTable")));
+    when(context.getElapsedTime(ChronoUnit.NANOS)).thenReturn(TimeUnit.MILLISECONDS.toNanos(99));
+    slowQueryLog.logAfterExecution(context);
+    verify(context, never()).getStatement();
+    verify(context, never()).getRawSql();
+
+    when(context.getElapsedTime(ChronoUnit.NANOS)).thenReturn(TimeUnit.MILLISECONDS.toNanos(100));
+    when(context.getRawSql()).thenReturn("select 1");
+    slowQueryLog.logAfterExecution(context);
+    verify(context).getRawSql();
+  }
+
+  @Test
+  public void testEventLogSampling() throws SQLException {
+    ListAppender<ILoggingEvent> appender = new ListAppender<>();
+    appender.start();
+    Logger logger = (Logger) LoggerFactory.getLogger(VandaHEventProcessor.class);
+    logger.addAppender(appender);
+    try {
+      when(config.getEventLogSampling()).thenReturn(3);
+      for (int i = 0; i < 6; i++) {
+        processor.consume(recordAdd);
+      }
+      assertEquals(2, appender.list.stream()
+          .filter(logEvent -> logEvent.getFormattedMessage().startsWith("Message -> ")).count());
+      verify(dbService, times(6)).addMeasurementFromEvent(any());
+    } finally {
+      logger.detachAppender(appender);
+    }
+  }
 }
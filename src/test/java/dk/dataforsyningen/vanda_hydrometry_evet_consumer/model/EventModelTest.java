@@ -1,6 +1,7 @@
 package dk.dataforsyningen.vanda_hydrometry_evet_consumer.model;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNull;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -10,6 +11,7 @@ import org.junit.jupiter.api.Test;
 import com.fasterxml.jackson.core.JsonProcessingException;
 
 import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.EventModel;
+import dk.dataforsyningen.vanda_hydrometry_event_consumer.model.MeasurementKey;
 
 public class EventModelTest {
 
@@ -91,4 +93,27 @@ public class EventModelTest {
 		assertEquals(0, event.getPartition());	
 	}
 	
+
+	@Test
+	public void testMeasurementKey() throws JsonProcessingException {
+		EventModel added = new ObjectMapper().readValue(measurementAdded, EventModel.class);
+		EventModel deleted = new ObjectMapper().readValue(measurementDeleted, EventModel.class);
+		
+		MeasurementKey key = MeasurementKey.of(added);
+		assertEquals(key, MeasurementKey.of(deleted));
+		assertEquals(key.hashCode(), MeasurementKey.of(deleted).hashCode());
+		assertEquals(key, new MeasurementKey(stationId, measurementPoint, mtExamTypeSc,
+				OffsetDateTime.parse("2024-10-05T01:50:00.00+02:00")));
+		
+		assertEquals(stationId, key.getStationId());
+		assertEquals(measurementPoint, key.getMeasurementPointNumber());
+		assertEquals(mtExamTypeSc, key.getExaminationTypeSc());
+		assertEquals(dateTime.toInstant(), key.getMeasurementDateTime());
+		
+		assertNotEquals(key, new MeasurementKey("12345679", measurementPoint, mtExamTypeSc, dateTime));
+		assertNotEquals(key, new MeasurementKey(stationId, 2, mtExamTypeSc, dateTime));
+		assertNotEquals(key, new MeasurementKey(stationId, measurementPoint, 27, dateTime));
+		assertNotEquals(key, new MeasurementKey(stationId, measurementPoint, mtExamTypeSc, dateTime.plusNanos(1000)));
+		assertNull(new MeasurementKey(null, measurementPoint, mtExamTypeSc, dateTime).getStationId());
+	}
 }